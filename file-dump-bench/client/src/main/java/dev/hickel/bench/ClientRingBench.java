@@ -0,0 +1,72 @@
+package dev.hickel.bench;
+
+import dev.hickel.BufferArena;
+import dev.hickel.CircularBufferQueue;
+import dev.hickel.Settings;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+// Hand off through the client ring between a reading thread and a sender, without the disk and the socket. The
+// reader copies each slab full from a source buffer like a file read would, the sender copies it out like a socket
+// write would. One invocation moves SLABS slabs through a new ring, scores are per slab.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ClientRingBench {
+    private static final int SLABS = 1024;
+
+    @Param({"65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    @Param({"2", "4", "8", "16"})
+    public int queueSize;
+
+    @Param({"park", "yield", "block"})
+    public String waitStrategy;
+
+    private ByteBuffer source;
+    private ByteBuffer sink;
+    private ByteBuffer[] slabs;
+
+    @Setup
+    public void setup() {
+        Settings.readWaitStrategy = waitStrategy;
+        Settings.sendWaitStrategy = waitStrategy;
+        Settings.memoryBudget = Long.MAX_VALUE;
+        source = Data.direct(chunkSize);
+        sink = ByteBuffer.allocateDirect(chunkSize);
+        slabs = BufferArena.acquire(CircularBufferQueue.ringSize(queueSize), chunkSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BufferArena.release(slabs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SLABS)
+    public void handOff() throws InterruptedException {
+        CircularBufferQueue ring = new CircularBufferQueue(null, 0, null, slabs);
+        Thread sender = new Thread(() -> {
+            for (int i = 0; i < SLABS; i++) {
+                ByteBuffer slab = ring.poll();
+                sink.clear().put(slab);
+                ring.finishedRead();
+            }
+        });
+        sender.start();
+
+        ByteBuffer buffer = ring.getFirst();
+        for (int i = 0; i < SLABS; i++) {
+            buffer.put(source.clear());
+            buffer = ring.swap(buffer);
+        }
+        sender.join();
+    }
+}
@@ -0,0 +1,56 @@
+package dev.hickel.bench;
+
+import dev.hickel.FrameOutput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+
+// Writing a transfer's frames the way the stream senders do, FrameOutput over a socket buffer of SOCKET_BUFFER_SIZE,
+// into a stream that drops the bytes. Each invocation sends one chunk of chunkSize split into frames of frameSize.
+// v1 flushes after every frame, v2 lets the buffer coalesce headers with the data.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class FrameEncodeBench {
+
+    @Param({"4194304"})
+    public int chunkSize;
+
+    @Param({"32768", "1048576", "4194304"})
+    public int frameSize;
+
+    private byte[] chunk;
+    private FrameOutput v1;
+    private FrameOutput v2;
+
+    @Setup
+    public void setup() {
+        chunk = Data.bytes(chunkSize);
+        v1 = new FrameOutput(socket(), false, frameSize);
+        v2 = new FrameOutput(socket(), true, frameSize);
+    }
+
+    private static DataOutputStream socket() {
+        return new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream(),
+                                                             FrameOutput.SOCKET_BUFFER_SIZE));
+    }
+
+    @Benchmark
+    public void encodeV1() throws IOException {
+        v1.writeData(chunk, 0, chunk.length);
+    }
+
+    @Benchmark
+    public void encodeV2() throws IOException {
+        v2.writeData(chunk, 0, chunk.length);
+        v2.flush();
+    }
+}
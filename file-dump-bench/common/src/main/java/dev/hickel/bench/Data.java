@@ -0,0 +1,20 @@
+package dev.hickel.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+// Payloads filled from a fixed seed so every run moves the same bytes
+public class Data {
+    private static final long SEED = 42;
+
+    public static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        return bytes;
+    }
+
+    public static ByteBuffer direct(int size) {
+        return ByteBuffer.allocateDirect(size).put(bytes(size)).flip();
+    }
+}
@@ -0,0 +1,357 @@
+package dev.hickel.bench;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Stream;
+
+
+// Sends synthetic files from a client to a server over loopback for each mode and reports what the transfer cost.
+// Client and server both live in dev.hickel and read config.yaml from their working directory, so each runs from
+// its packaged jar in a jvm of its own, in a directory of its own under --dir. A mode is a set of config overrides
+// for either side, the default modes are separateThreadForReading x separateThreadForWriting.
+//
+// Throughput is timed on the server's metrics endpoint, from the first bytes written to the last file committed.
+// Cpu is counted over the same window, gc pauses and allocation over the life of each jvm from its gc log, so the
+// allocation rate is per second of that life, not of the transfer. A run that finishes before a second scrape
+// fails as too fast to measure. With --baseline the run fails if a mode is
+// more than --tolerance percent slower than in that csv.
+public class LoopbackBench {
+    private static final long MiB = 1048576;
+    private static final double GiB = 1073741824.0;
+    private static final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+    private static final Map<String, String> options = new HashMap<>(Map.of(
+            "size", "256",
+            "count", "4",
+            "runs", "1",
+            "timeout", "600",
+            "tolerance", "10",
+            "jvm-args", "",
+            "dir", System.getProperty("java.io.tmpdir")
+    ));
+
+    record Mode(String name, Map<String, Object> server, Map<String, Object> client) { }
+
+    record Result(String mode, double mibPerSecond, double gib, double seconds, double serverCpu, double clientCpu,
+            Node.Gc serverGc, Node.Gc clientGc) {
+
+        double cpuPerGib(double cpu) {
+            return cpu / gib;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) { usage("Missing value for: " + args[i]); }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        Path serverJar = jar("server");
+        Path clientJar = jar("client");
+        List<Mode> modes = options.containsKey("modes") ? readModes(Path.of(options.get("modes"))) : defaultModes();
+
+        Path base = Files.createTempDirectory(Path.of(options.get("dir")), "file-dump-loopback");
+        Path pool = base.resolve("pool");
+        boolean failed = false;
+        List<Result> results = new ArrayList<>();
+        try {
+            generate(pool);
+            for (Mode mode : modes) {
+                List<Result> runs = new ArrayList<>();
+                for (int run = 0; run < intOption("runs"); run++) {
+                    try {
+                        runs.add(run(mode, run, pool, base, serverJar, clientJar));
+                    } catch (IllegalStateException e) {
+                        System.out.println("Mode: " + mode.name + " failed: " + e.getMessage());
+                        failed = true;
+                    }
+                }
+                if (runs.isEmpty()) { continue; }
+                // The median run stands for the mode
+                runs.sort(Comparator.comparingDouble(Result::mibPerSecond));
+                results.add(runs.get(runs.size() / 2));
+            }
+        } finally {
+            // Runs clean up after themselves, what is left are the logs of failed ones
+            delete(pool);
+            if (!failed) { delete(base); }
+        }
+        if (failed) { System.out.println("Logs of failed runs kept in: " + base); }
+
+        print(results, System.out);
+        if (options.containsKey("csv")) {
+            try (PrintStream csv = new PrintStream(Files.newOutputStream(Path.of(options.get("csv"))))) {
+                writeCsv(results, csv);
+            }
+        }
+        if (options.containsKey("baseline") && regressed(results, Path.of(options.get("baseline")))) { failed = true; }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static void usage(String error) {
+        System.out.println(error);
+        System.out.println("""
+                Options:
+                  --server-jar   packaged server, default ../file-dump-server/target/*-jar-with-dependencies.jar
+                  --client-jar   packaged client, default ../file-dump-client/target/*-jar-with-dependencies.jar
+                  --modes        yaml of mode name to server and client config overrides, see modes.yaml
+                  --size         MiB per file, default 256
+                  --count        files per run, default 4
+                  --runs         runs per mode, the median is reported, default 1
+                  --dir          where to put the files, default java.io.tmpdir
+                  --timeout      seconds a run may take, default 600
+                  --jvm-args     extra arguments for both jvms, space separated
+                  --csv          also write the results to this file
+                  --baseline     csv of an earlier run, fail when a mode is slower by more than --tolerance
+                  --tolerance    percent, default 10""");
+        System.exit(1);
+    }
+
+    private static int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private static Path jar(String module) throws IOException {
+        if (options.containsKey(module + "-jar")) { return Path.of(options.get(module + "-jar")); }
+        for (Path target : List.of(Path.of("..", "file-dump-" + module, "target"),
+                                   Path.of("file-dump-" + module, "target"))) {
+            if (!Files.isDirectory(target)) { continue; }
+            try (Stream<Path> files = Files.list(target)) {
+                Optional<Path> jar = files.filter(f -> f.getFileName().toString().endsWith("-jar-with-dependencies.jar"))
+                        .findFirst();
+                if (jar.isPresent()) { return jar.get(); }
+            }
+        }
+        usage("No packaged " + module + " found, run mvn package in file-dump-" + module + " or pass --" + module + "-jar");
+        return null;
+    }
+
+    private static List<Mode> readModes(Path file) throws IOException {
+        Map<String, Map<String, Map<String, Object>>> read =
+                new YAMLMapper().readValue(file.toFile(), new TypeReference<LinkedHashMap<String, Map<String, Map<String, Object>>>>() { });
+        List<Mode> modes = new ArrayList<>();
+        read.forEach((name, sides) -> modes.add(new Mode(name, sides.getOrDefault("server", Map.of()),
+                                                          sides.getOrDefault("client", Map.of()))));
+        return modes;
+    }
+
+    private static List<Mode> defaultModes() {
+        List<Mode> modes = new ArrayList<>();
+        for (boolean reading : new boolean[]{true, false}) {
+            for (boolean writing : new boolean[]{true, false}) {
+                String name = (reading ? "threadRead" : "inlineRead") + "-" + (writing ? "threadWrite" : "inlineWrite");
+                modes.add(new Mode(name, Map.of("separateThreadForWriting", writing),
+                                   Map.of("separateThreadForReading", reading)));
+            }
+        }
+        return modes;
+    }
+
+    // Files of slightly different sizes, so none is an exact multiple of any buffer, from a fixed seed
+    private static void generate(Path pool) throws IOException {
+        Files.createDirectories(pool);
+        byte[] block = Data.bytes((int) MiB);
+        for (int i = 0; i < intOption("count"); i++) {
+            long size = intOption("size") * MiB + i * 12345L;
+            try (OutputStream out = Files.newOutputStream(pool.resolve("loopback" + i + ".plot"))) {
+                for (long written = 0; written < size; written += block.length) {
+                    out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+            }
+        }
+    }
+
+    private static Result run(Mode mode, int run, Path pool, Path base, Path serverJar, Path clientJar)
+            throws IOException, InterruptedException {
+        Path dir = base.resolve(mode.name + "-" + run);
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Path output = Files.createDirectories(dir.resolve("output"));
+        try (Stream<Path> files = Files.list(pool)) {
+            for (Path file : files.toList()) {
+                // Links cost no copy and the client deleting them leaves the pool intact
+                Files.createLink(source.resolve(file.getFileName()), file);
+            }
+        }
+
+        int port = freePort();
+        int metricsPort = freePort();
+        Map<String, Object> serverConfig = new LinkedHashMap<>();
+        serverConfig.put("bindAddress", "127.0.0.1");
+        serverConfig.put("port", port);
+        serverConfig.put("metricsPort", metricsPort);
+        serverConfig.put("outputDirectories", List.of(output + "/"));
+        serverConfig.put("limitOneTransferPerDirectory", false);
+        serverConfig.put("deleteForSpace", false);
+        serverConfig.putAll(mode.server);
+
+        Map<String, Object> clientConfig = new LinkedHashMap<>();
+        clientConfig.put("serverAddresses", List.of("127.0.0.1"));
+        clientConfig.put("serverPorts", List.of(port));
+        clientConfig.put("maxTransfers", List.of(intOption("count")));
+        clientConfig.put("monitoredDirectories", List.of(source + "/"));
+        clientConfig.put("monitoredFileTypes", List.of("plot"));
+        clientConfig.put("fileCheckInterval", 1);
+        clientConfig.put("fileSettleTime", 0);
+        clientConfig.put("deleteAfterTransfer", true);
+        clientConfig.putAll(mode.client);
+
+        List<String> jvmArgs = options.get("jvm-args").isBlank()
+                ? List.of() : List.of(options.get("jvm-args").trim().split("\\s+"));
+        System.out.println("Running mode: " + mode.name + " run: " + run);
+        Node server = Node.start(serverJar, dir.resolve("server"), serverConfig, jvmArgs);
+        Node client = null;
+        try {
+            long deadline = System.nanoTime() + intOption("timeout") * 1_000_000_000L;
+            while (scrape(metricsPort) == null) { check(server, null, deadline); }
+            client = Node.start(clientJar, dir.resolve("client"), clientConfig, jvmArgs);
+
+            long startNanos = 0;
+            long startBytes = 0;
+            double serverCpu = 0;
+            double clientCpu = 0;
+            while (true) {
+                check(server, client, deadline);
+                Map<String, Double> metrics = scrape(metricsPort);
+                if (metrics == null) { continue; }
+                long written = metrics.getOrDefault("filedump_written_bytes_total", 0.0).longValue();
+                long files = metrics.getOrDefault("filedump_files_received_total", 0.0).longValue();
+                if (startNanos == 0 && written > 0) {
+                    startNanos = System.nanoTime();
+                    startBytes = written;
+                    serverCpu = server.cpuSeconds();
+                    clientCpu = client.cpuSeconds();
+                }
+                if (files >= intOption("count")) {
+                    // Without an earlier scrape that saw the transfer under way there is no window to time
+                    if (startNanos == 0 || written == startBytes) {
+                        throw new IllegalStateException("Too fast to measure, use a larger --size");
+                    }
+                    double seconds = (System.nanoTime() - startNanos) / 1e9;
+                    double gib = (written - startBytes) / GiB;
+                    serverCpu = server.cpuSeconds() - serverCpu;
+                    clientCpu = client.cpuSeconds() - clientCpu;
+                    client.close();
+                    server.close();
+                    verify(pool, output);
+                    Result result = new Result(mode.name, gib * 1024 / seconds, gib, seconds, serverCpu, clientCpu,
+                                               server.gc(), client.gc());
+                    System.out.printf("Finished mode: %s run: %d | %.1f MiB/s%n", mode.name, run, result.mibPerSecond);
+                    delete(dir);
+                    return result;
+                }
+                // Often enough that the bytes written before the first sample are a small part of the run
+                Thread.sleep(10);
+            }
+        } finally {
+            if (client != null) { client.close(); }
+            server.close();
+        }
+    }
+
+    private static void check(Node server, Node client, long deadline) throws InterruptedException {
+        if (!server.isAlive()) { throw new IllegalStateException("Server exited, see " + server.log()); }
+        if (client != null && !client.isAlive()) { throw new IllegalStateException("Client exited, see " + client.log()); }
+        if (System.nanoTime() > deadline) { throw new IllegalStateException("Timed out, see " + server.log()); }
+        if (client == null) { Thread.sleep(50); }
+    }
+
+    // Null until the server is listening
+    private static Map<String, Double> scrape(int metricsPort) throws InterruptedException {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + metricsPort + "/metrics"))
+                    .timeout(Duration.ofSeconds(2)).build();
+            Map<String, Double> metrics = new HashMap<>();
+            for (String line : http.send(request, HttpResponse.BodyHandlers.ofLines()).body().toList()) {
+                if (line.startsWith("#")) { continue; }
+                int space = line.lastIndexOf(' ');
+                if (space > 0) { metrics.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1))); }
+            }
+            return metrics;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void verify(Path pool, Path output) throws IOException {
+        try (Stream<Path> files = Files.list(pool)) {
+            for (Path file : files.toList()) {
+                Path received = output.resolve(file.getFileName());
+                if (!Files.exists(received) || Files.mismatch(file, received) != -1) {
+                    throw new IllegalStateException("Received file differs from the source: " + received);
+                }
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) { return socket.getLocalPort(); }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) { return; }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) { Files.deleteIfExists(p); }
+        }
+    }
+
+    private static void print(List<Result> results, PrintStream out) {
+        out.printf("%n%-28s %9s %13s %13s %20s %20s %20s %20s%n", "Mode", "MiB/s", "Srv cpu s/GiB",
+                   "Cli cpu s/GiB", "Srv life alloc MiB/s", "Cli life alloc MiB/s", "Srv gc n/ms/max",
+                   "Cli gc n/ms/max");
+        for (Result r : results) {
+            out.printf("%-28s %9.1f %13.2f %13.2f %20.1f %20.1f %20s %20s%n", r.mode, r.mibPerSecond,
+                       r.cpuPerGib(r.serverCpu), r.cpuPerGib(r.clientCpu), r.serverGc.allocMibPerSecond(),
+                       r.clientGc.allocMibPerSecond(), pauses(r.serverGc), pauses(r.clientGc));
+        }
+    }
+
+    private static String pauses(Node.Gc gc) {
+        return String.format("%d/%.1f/%.1f", gc.pauses(), gc.pauseMillis(), gc.maxPauseMillis());
+    }
+
+    private static void writeCsv(List<Result> results, PrintStream out) {
+        out.println("mode,mib_per_second,server_cpu_seconds_per_gib,client_cpu_seconds_per_gib,"
+                            + "server_lifetime_alloc_mib_per_second,client_lifetime_alloc_mib_per_second,"
+                            + "server_gc_pauses,server_gc_pause_ms,server_gc_max_pause_ms,client_gc_pauses,"
+                            + "client_gc_pause_ms,client_gc_max_pause_ms");
+        for (Result r : results) {
+            out.printf(Locale.ROOT, "%s,%.1f,%.3f,%.3f,%.1f,%.1f,%d,%.1f,%.1f,%d,%.1f,%.1f%n", r.mode,
+                       r.mibPerSecond, r.cpuPerGib(r.serverCpu), r.cpuPerGib(r.clientCpu),
+                       r.serverGc.allocMibPerSecond(), r.clientGc.allocMibPerSecond(), r.serverGc.pauses(),
+                       r.serverGc.pauseMillis(), r.serverGc.maxPauseMillis(), r.clientGc.pauses(),
+                       r.clientGc.pauseMillis(), r.clientGc.maxPauseMillis());
+        }
+    }
+
+    private static boolean regressed(List<Result> results, Path baselineCsv) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineCsv).stream().skip(1).toList()) {
+            String[] fields = line.split(",");
+            if (fields.length > 1) { baseline.put(fields[0], Double.parseDouble(fields[1])); }
+        }
+        double tolerance = Double.parseDouble(options.get("tolerance")) / 100;
+        boolean regressed = false;
+        for (Result r : results) {
+            Double expected = baseline.get(r.mode);
+            if (expected == null) { continue; }
+            if (r.mibPerSecond < expected * (1 - tolerance)) {
+                System.out.printf("Regression in mode: %s | %.1f MiB/s, baseline: %.1f MiB/s%n", r.mode,
+                                  r.mibPerSecond, expected);
+                regressed = true;
+            }
+        }
+        if (!regressed) { System.out.println("No mode regressed against: " + baselineCsv); }
+        return regressed;
+    }
+}
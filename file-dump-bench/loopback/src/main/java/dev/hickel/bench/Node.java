@@ -0,0 +1,120 @@
+package dev.hickel.bench;
+
+import com.fasterxml.jackson.dataformat.yaml.YAMLMapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// The client or the server running from its packaged jar in a jvm of its own, in a directory holding its
+// config.yaml, its output in out.log and its gc log in gc.log
+public class Node implements AutoCloseable {
+    private static final Pattern PAUSE = Pattern.compile("Pause.*?(\\d+)([KMG])->(\\d+)([KMG])\\(\\d+[KMG]\\) ([\\d.]+)ms");
+    private static final Pattern EXIT_USED = Pattern.compile("total \\d+K, used (\\d+)K");
+    private final Path dir;
+    private final Process process;
+    private final long startNanos = System.nanoTime();
+    private long stopNanos;
+
+    // Totals over the life of the jvm, seconds is that life from launch to exit
+    public record Gc(int pauses, double pauseMillis, double maxPauseMillis, long allocatedBytes, double seconds) {
+
+        // Averaged over the whole life, the gc log has no finer account of allocation than that
+        public double allocMibPerSecond() {
+            return allocatedBytes / 1048576.0 / seconds;
+        }
+    }
+
+    private Node(Path dir, Process process) {
+        this.dir = dir;
+        this.process = process;
+    }
+
+    public static Node start(Path jar, Path dir, Map<String, Object> config, List<String> jvmArgs) throws IOException {
+        Files.createDirectories(dir);
+        new YAMLMapper().writeValue(dir.resolve("config.yaml").toFile(), config);
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-Xlog:gc,gc+heap+exit:file=" + dir.resolve("gc.log"));
+        command.add("-jar");
+        command.add(jar.toAbsolutePath().toString());
+        Process process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("out.log").toFile())
+                .start();
+        return new Node(dir, process);
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    // User and system time of the whole jvm so far
+    public double cpuSeconds() {
+        return process.info().totalCpuDuration().orElse(Duration.ZERO).toNanos() / 1e9;
+    }
+
+    public Path log() {
+        return dir.resolve("out.log");
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            process.waitFor();
+        }
+        if (stopNanos == 0) { stopNanos = System.nanoTime(); }
+    }
+
+    // Pauses and allocation over the life of the jvm, read from gc.log once it exited. Allocation is the heap
+    // growth between collections plus what was still in use at exit.
+    public Gc gc() throws IOException {
+        double seconds = (stopNanos - startNanos) / 1e9;
+        Path log = dir.resolve("gc.log");
+        if (!Files.exists(log)) { return new Gc(0, 0, 0, 0, seconds); }
+        int pauses = 0;
+        double pauseMillis = 0;
+        double maxPauseMillis = 0;
+        long allocated = 0;
+        long lastAfter = 0;
+        long usedAtExit = -1;
+        for (String line : Files.readAllLines(log)) {
+            Matcher pause = PAUSE.matcher(line);
+            if (pause.find()) {
+                long before = bytes(pause.group(1), pause.group(2));
+                double millis = Double.parseDouble(pause.group(5));
+                allocated += Math.max(0, before - lastAfter);
+                lastAfter = bytes(pause.group(3), pause.group(4));
+                pauses++;
+                pauseMillis += millis;
+                maxPauseMillis = Math.max(maxPauseMillis, millis);
+                continue;
+            }
+            Matcher used = EXIT_USED.matcher(line);
+            if (used.find()) { usedAtExit = Math.max(usedAtExit, 0) + Long.parseLong(used.group(1)) * 1024; }
+        }
+        if (usedAtExit >= 0) { allocated += Math.max(0, usedAtExit - lastAfter); }
+        return new Gc(pauses, pauseMillis, maxPauseMillis, allocated, seconds);
+    }
+
+    private static long bytes(String amount, String unit) {
+        long value = Long.parseLong(amount);
+        return switch (unit) {
+            case "K" -> value * 1024;
+            case "M" -> value * 1048576;
+            default -> value * 1073741824;
+        };
+    }
+}
@@ -0,0 +1,77 @@
+package dev.hickel.bench;
+
+import dev.hickel.Handshake;
+import dev.hickel.Protocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+// Reading a transfer's frames the way the receivers do, Handshake.nextFrame for the header and readFully for the
+// payload, from an in memory stream of TRANSFER bytes. v1 is a bare int length, v2 adds the type byte.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class FrameDecodeBench {
+    private static final int TRANSFER = 64 * 1048576;
+
+    @Param({"32768", "1048576", "4194304"})
+    public int frameSize;
+
+    private byte[] v1Stream;
+    private byte[] v2Stream;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] frame = Data.bytes(frameSize);
+        v1Stream = encode(frame, false);
+        v2Stream = encode(frame, true);
+        payload = new byte[frameSize];
+    }
+
+    private byte[] encode(byte[] frame, boolean v2) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(TRANSFER + TRANSFER / frameSize * 5 + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int sent = 0; sent < TRANSFER; sent += frameSize) {
+            if (v2) { out.writeByte(Protocol.FRAME_DATA); }
+            out.writeInt(frameSize);
+            out.write(frame);
+        }
+        if (v2) { out.writeByte(Protocol.FRAME_EOF); }
+        out.writeInt(v2 ? 0 : -1);
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public long decodeV1() throws IOException {
+        return decode(v1Stream, false);
+    }
+
+    @Benchmark
+    public long decodeV2() throws IOException {
+        return decode(v2Stream, true);
+    }
+
+    private long decode(byte[] stream, boolean v2) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        Handshake handshake = new Handshake(in, null);
+        handshake.v2 = v2;
+        handshake.frameSize = frameSize;
+        long received = 0;
+        int length;
+        while ((length = handshake.nextFrame()) != -1) {
+            in.readFully(payload, 0, length);
+            received += length;
+        }
+        return received;
+    }
+}
@@ -0,0 +1,75 @@
+package dev.hickel.bench;
+
+import dev.hickel.BufferArena;
+import dev.hickel.CircularBufferQueue;
+import dev.hickel.Handshake;
+import dev.hickel.Settings;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+
+// Hand off through the server ring between a receiving thread and a writer, without the socket and the disk. The
+// receiver copies each slab full from a source buffer like a socket read would, the writer copies it out like a
+// write to the page cache would. One invocation moves SLABS slabs through a new ring, scores are per slab.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ServerRingBench {
+    private static final int SLABS = 1024;
+
+    @Param({"65536", "1048576", "4194304"})
+    public int blockBufferSize;
+
+    @Param({"2", "4", "8", "16"})
+    public int queueSize;
+
+    @Param({"park", "yield", "block"})
+    public String waitStrategy;
+
+    private ByteBuffer source;
+    private ByteBuffer sink;
+    private ByteBuffer[] slabs;
+
+    @Setup
+    public void setup() {
+        Settings.receiveWaitStrategy = waitStrategy;
+        Settings.writeWaitStrategy = waitStrategy;
+        Settings.memoryBudget = Long.MAX_VALUE;
+        source = Data.direct(blockBufferSize);
+        sink = ByteBuffer.allocateDirect(blockBufferSize);
+        slabs = BufferArena.acquire(CircularBufferQueue.ringSize(queueSize), blockBufferSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BufferArena.release(slabs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SLABS)
+    public void handOff() throws InterruptedException {
+        Handshake handshake = new Handshake(null, null);
+        handshake.slabs = slabs;
+        CircularBufferQueue ring = new CircularBufferQueue(handshake);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < SLABS; i++) {
+                ByteBuffer slab = ring.poll();
+                sink.clear().put(slab);
+                ring.wrote();
+            }
+        });
+        writer.start();
+
+        ByteBuffer buffer = ring.getFirst();
+        for (int i = 0; i < SLABS; i++) {
+            buffer.put(source.clear());
+            buffer = ring.swap(buffer, i == SLABS - 1);
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,106 @@
+package dev.hickel.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+
+// Writing one file of fileMiB out of frames of frameSize through each of the server's write paths:
+//   bufferedStream   - FileReceiver, frames copied into a BufferedOutputStream of bufferSize
+//   channel          - the ring writer, frames copied into a direct slab of bufferSize written with FileChannel
+//   positionalWrite  - zerocopy and nio receivers, the same slab written at an explicit position
+// Files go to dir, tmpfs by default so the score is the cost of the path and not of a disk. Point dir at a real
+// disk to include it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class WritePathBench {
+
+    @Param({"/dev/shm"})
+    public String dir;
+
+    @Param({"64"})
+    public int fileMiB;
+
+    @Param({"32768", "1048576"})
+    public int frameSize;
+
+    @Param({"65536", "1048576", "4194304"})
+    public int bufferSize;
+
+    private Path file;
+    private byte[] frame;
+    private ByteBuffer slab;
+    private long fileSize;
+    private long position;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile(Path.of(dir), "write-path-bench", ".tmp");
+        frame = Data.bytes(frameSize);
+        slab = ByteBuffer.allocateDirect(bufferSize);
+        fileSize = (long) fileMiB * 1048576;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void bufferedStream() throws IOException {
+        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file.toFile()), bufferSize)) {
+            for (long written = 0; written < fileSize; written += frameSize) { out.write(frame); }
+        }
+    }
+
+    @Benchmark
+    public void channel() throws IOException {
+        write(false);
+    }
+
+    @Benchmark
+    public void positionalWrite() throws IOException {
+        write(true);
+    }
+
+    private void write(boolean positional) throws IOException {
+        position = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < fileSize; written += frameSize) {
+                // Copy the frame into the slab like a socket read would, writing the slab whenever it fills
+                int offset = 0;
+                while (offset < frame.length) {
+                    int length = Math.min(frame.length - offset, slab.remaining());
+                    slab.put(frame, offset, length);
+                    offset += length;
+                    if (!slab.hasRemaining()) { flush(channel, positional); }
+                }
+            }
+            flush(channel, positional);
+        }
+    }
+
+    private void flush(FileChannel channel, boolean positional) throws IOException {
+        slab.flip();
+        while (slab.hasRemaining()) {
+            if (positional) {
+                position += channel.write(slab, position);
+            } else {
+                channel.write(slab);
+            }
+        }
+        slab.clear();
+    }
+}
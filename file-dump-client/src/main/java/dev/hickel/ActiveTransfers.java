@@ -0,0 +1,181 @@
+package dev.hickel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+
+// Transfer slots of every server and how its transfers went lately, servers are keyed by address:port. The slot
+// counts are kept per server so checking a limit doesn't walk every active transfer. New files go to the server
+// with the best score, so slow or nearly full servers get fewer of them.
+public class ActiveTransfers {
+    private static final double WEIGHT = 0.3; // weight of the newest sample in the moving averages
+    private static final Metrics.Counter STARTED = Metrics.counter("filedump_transfers_started_total",
+            "Transfer slots taken, stripes count on their own");
+    private static final Metrics.Counter FINISHED = Metrics.counter("filedump_transfers_finished_total",
+            "Transfers the server confirmed");
+    private static final Metrics.Counter REJECTED = Metrics.counter("filedump_transfers_rejected_total",
+            "Transfers the server turned away or that couldn't connect");
+    private static final Metrics.Counter ABORTED = Metrics.counter("filedump_transfers_aborted_total",
+            "Transfers that ended without an answer from the server, failed or deferred");
+    private static final Metrics.Histogram TRANSFER_TIME = Metrics.histogram("filedump_transfer_seconds",
+            "Time from taking a slot to the server confirming the transfer", Metrics.DURATION);
+
+    private record Slot(Server server, long bytes, long startTime) { }
+
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+
+    public ActiveTransfers() {
+        Metrics.gauges("filedump_server_transfers", "Transfer slots taken per server", "server",
+                       () -> perServer(stats -> stats.transfers.get()));
+        Metrics.gauges("filedump_server_inflight_bytes", "Bytes of the active transfers per server", "server",
+                       () -> perServer(stats -> stats.bytes.get()));
+        Metrics.gauges("filedump_server_rate_mibs", "Moving average MiB/s of one transfer per server", "server",
+                       () -> perServer(stats -> Math.max(0, stats.rate)));
+        Metrics.gauges("filedump_server_reject_ratio", "Moving average share of transfers the server rejected",
+                       "server", () -> perServer(stats -> stats.rejectRate));
+    }
+
+    public static String serverKey(String address, int port) {
+        return address + ":" + port;
+    }
+
+    // bytes is what the slot will send, counted against the server until the slot is released
+    public void put(String name, String server, long bytes) {
+        Server stats = servers.computeIfAbsent(server, k -> new Server());
+        Slot previous = slots.put(name, new Slot(stats, bytes, System.currentTimeMillis()));
+        if (previous != null) { previous.server.release(previous.bytes); }
+        stats.transfers.incrementAndGet();
+        STARTED.inc();
+        stats.bytes.addAndGet(bytes);
+        ServerCapacity capacity = stats.capacity;
+        if (capacity != null) { capacity.placed(bytes); }
+    }
+
+    // null when the server has no capacityPort or didn't answer, it is then connected to without knowing
+    public void setCapacity(String server, ServerCapacity capacity) {
+        servers.computeIfAbsent(server, k -> new Server()).capacity = capacity;
+    }
+
+    public boolean containsKey(String name) {
+        return slots.containsKey(name);
+    }
+
+    // Safe to call more than once, senders release their slot on every exit path
+    public void remove(String name) {
+        Slot slot = slots.remove(name);
+        if (slot == null) { return; }
+        ABORTED.inc();
+        slot.server.release(slot.bytes);
+    }
+
+    public void finished(String name, long bytesSent) {
+        Slot slot = slots.remove(name);
+        if (slot == null) { return; }
+        FINISHED.inc();
+        TRANSFER_TIME.observe((System.currentTimeMillis() - slot.startTime) * 1_000_000);
+        double seconds = Math.max(1, System.currentTimeMillis() - slot.startTime) / 1000.0;
+        slot.server.sample(bytesSent / 1048576.0 / seconds, false);
+        slot.server.release(slot.bytes);
+    }
+
+    // The server turned the file away or couldn't be reached
+    public void rejected(String name) {
+        Slot slot = slots.remove(name);
+        if (slot == null) { return; }
+        REJECTED.inc();
+        slot.server.sample(-1, true);
+        slot.server.release(slot.bytes);
+    }
+
+    public boolean limitMet(String server, int limit) {
+        Server stats = servers.get(server);
+        return stats != null && stats.transfers.get() >= limit;
+    }
+
+    // Index of the server to send a file of fileSize to, -1 when all of them are at their limit or said they have
+    // no room for it
+    public int pick(List<String> keys, List<Integer> limits, long fileSize) {
+        double unknownRate = unknownRate();
+        int best = -1;
+        double bestScore = -1;
+        for (int i = 0; i < keys.size(); i++) {
+            if (limitMet(keys.get(i), limits.get(i))) { continue; }
+            ServerCapacity capacity = servers.computeIfAbsent(keys.get(i), k -> new Server()).capacity;
+            if (capacity != null && !capacity.fits(fileSize)) { continue; }
+            double score = score(keys.get(i), fileSize, unknownRate);
+            if (score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // Expected MiB/s for the file, discounted by how often the server rejected lately and by the bytes it is
+    // already busy with relative to the file
+    private double score(String key, long fileSize, double unknownRate) {
+        Server stats = servers.computeIfAbsent(key, k -> new Server());
+        double rate = stats.rate < 0 ? unknownRate : stats.rate;
+        return rate * (1 - stats.rejectRate) / (1 + (double) stats.bytes.get() / Math.max(1, fileSize));
+    }
+
+    // Servers nothing finished on yet are assumed as fast as the average of the others, so they still get tried
+    private double unknownRate() {
+        double sum = 0;
+        int known = 0;
+        for (Server stats : servers.values()) {
+            if (stats.rate < 0) { continue; }
+            sum += stats.rate;
+            known++;
+        }
+        return known > 0 ? sum / known : 1;
+    }
+
+    public String scores(List<String> keys, long fileSize) {
+        double unknownRate = unknownRate();
+        StringBuilder sb = new StringBuilder();
+        for (String key : keys) {
+            Server stats = servers.computeIfAbsent(key, k -> new Server());
+            if (!sb.isEmpty()) { sb.append(", "); }
+            sb.append(key)
+                    .append(" (score: ").append(Math.round(score(key, fileSize, unknownRate) * 10) / 10.0)
+                    .append(" | ").append(stats.rate < 0 ? "?" : Math.round(stats.rate)).append(" MiBs")
+                    .append(" | ").append(Math.round(stats.rejectRate * 100)).append("% rejected")
+                    .append(" | ").append(stats.transfers.get()).append(" active")
+                    .append(" | ").append(stats.bytes.get() / 1048576).append(" MiB in flight");
+            if (stats.capacity != null) { sb.append(" | ").append(stats.capacity); }
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    private Map<String, Number> perServer(Function<Server, Number> value) {
+        Map<String, Number> values = new TreeMap<>();
+        servers.forEach((key, stats) -> values.put(key, value.apply(stats)));
+        return values;
+    }
+
+    private static class Server {
+        private final AtomicInteger transfers = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile double rate = -1; // MiB/s of a single transfer, -1 until one finished
+        private volatile double rejectRate = 0;
+        private volatile ServerCapacity capacity;
+
+        void release(long slotBytes) {
+            transfers.decrementAndGet();
+            bytes.addAndGet(-slotBytes);
+        }
+
+        synchronized void sample(double transferRate, boolean rejected) {
+            rejectRate += WEIGHT * ((rejected ? 1 : 0) - rejectRate);
+            if (transferRate >= 0) { rate = rate < 0 ? transferRate : rate + WEIGHT * (transferRate - rate); }
+        }
+    }
+}
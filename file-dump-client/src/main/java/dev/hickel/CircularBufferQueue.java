@@ -1,107 +1,188 @@
 package dev.hickel;
 
 import java.io.*;
-import java.time.Instant;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.concurrent.locks.LockSupport;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
+// Single producer single consumer ring between the reader thread and the sender. The reader fills the slab at
+// readerSeq and publishes it, the sender drains the slab at senderSeq and releases it. Each side only writes its
+// own sequence and keeps a cached copy of the other's, which is only re-read when the ring looks full or empty.
 public class CircularBufferQueue implements Runnable {
-    private volatile byte[][] byteQueue;
-    private AtomicIntegerArray indexFlags;
-    private volatile int head;
-    private volatile int tail;
-    private volatile int lastBufferSize = Settings.chunkSize;
-    private final int chunkSize = Settings.chunkSize;
-    private final int capacity = Settings.readQueueSize;
-    private volatile boolean finished = false;
+    private static final Set<CircularBufferQueue> live = ConcurrentHashMap.newKeySet();
+    private static final Metrics.Counter READER_STALL = Metrics.seconds("filedump_ring_reader_stall_seconds_total",
+            "Time reader threads waited for the sender to free a slab");
+    private static final Metrics.Counter SENDER_STALL = Metrics.seconds("filedump_ring_sender_stall_seconds_total",
+            "Time senders waited for the reader to fill a slab");
+    private static final Metrics.Histogram SLAB_READ = Metrics.histogram("filedump_slab_read_seconds",
+            "Time to read one slab from disk", Metrics.LATENCY);
+
+    static {
+        Metrics.gauge("filedump_ring_slabs_filled", "Slabs read and waiting to be sent, over all rings",
+                      () -> live.stream().mapToLong(CircularBufferQueue::filled).sum());
+        Metrics.gauge("filedump_ring_slabs", "Slabs of all rings", () -> live.stream().mapToLong(q -> q.capacity).sum());
+    }
+
+    private final ByteBuffer[] byteQueue; // slabs from the BufferArena, owned by the sender
+    private final int capacity;
+    private final int mask;
+    private final Sequence published = new Sequence(); // slabs handed to the sender
+    private final Sequence released = new Sequence();  // slabs handed back to the reader
+    private long readerSeq = 0;       // reader thread only
+    private long cachedReleased = 0;  // reader thread only
+    private long senderSeq = 0;       // sender thread only
+    private long cachedPublished = 0; // sender thread only
+    private final WaitStrategy readerWait = WaitStrategy.of(Settings.readWaitStrategy);
+    private final WaitStrategy senderWait = WaitStrategy.of(Settings.sendWaitStrategy);
     private File file;
+    private final long startOffset;
+    private final Checksum checksum; // updated by the reader as chunks are queued, null if not negotiated
     private volatile int state = 1;
+    private Thread readerThread;
 
-    public CircularBufferQueue(File file) {
+    public CircularBufferQueue(File file, long startOffset, Checksum checksum, ByteBuffer[] slabs) {
+        if (Integer.bitCount(slabs.length) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + slabs.length);
+        }
         this.file = file;
-        byteQueue = new byte[Settings.readQueueSize][Settings.chunkSize];
-        indexFlags = new AtomicIntegerArray(Settings.readQueueSize);
-        head = 0;
-        tail = 0;
+        this.startOffset = startOffset;
+        this.checksum = checksum;
+        byteQueue = slabs;
+        capacity = slabs.length;
+        mask = capacity - 1;
+    }
+
+    // Slabs to acquire for a queue of the configured length
+    public static int ringSize(int queueSize) {
+        return queueSize <= 2 ? 2 : Integer.highestOneBit(queueSize - 1) << 1;
+    }
+
+    public void start() {
+        live.add(this);
+        readerThread = VirtualThreads.start(this);
+    }
+
+    private long filled() {
+        return published.get() - released.get();
     }
 
-    // A buffer is "checked out" with the flag set to 1, once it is return full the flag is set to 2 meaning it is ready
-    // to read. After a read has been done flag is return to 0 meaning it is free to be written to again.
-    // buffers stay the same size, up until the last write and "null" 0 termination buffer. This allows for the last read
-    // where the buffer is more than likely not going to equal the block size
-    public byte[] swap(byte[] buffer, int size) {
-        int currTail = tail;
-
-        if (size < chunkSize) {
-            byte[] smallBuff = new byte[size];
-            System.arraycopy(buffer, 0, smallBuff, 0, size);
-            byteQueue[currTail] = smallBuff;
-        } else {
-            byteQueue[currTail] = buffer;
+    // The buffer is handed over flipped so its limit carries the size, the last read is short and an empty buffer
+    // terminates the stream. Returns the next slab to fill once the sender has released it.
+    public ByteBuffer swap(ByteBuffer buffer) {
+        buffer.flip();
+        if (checksum != null) {
+            checksum.update(buffer);
+            buffer.rewind();
         }
-        lastBufferSize = size;
-        indexFlags.set(currTail, 2);
-        while (indexFlags.get((currTail + 1) % capacity) > 0) {
-            LockSupport.parkNanos(100);
+        long next = ++readerSeq;
+        published.set(next);
+        senderWait.signal();
+
+        // The slab at next is free once the sender released everything up to one lap behind it
+        if (next - cachedReleased >= capacity) {
+            int round = 0;
+            long stalled = 0;
+            while (next - (cachedReleased = released.get()) >= capacity) {
+                if (state <= 0) { return buffer; } // sender gave up, stop waiting on a slot that won't free
+                if (round == 0) { stalled = System.nanoTime(); }
+                readerWait.idle(round++);
+            }
+            if (round > 0) { READER_STALL.add(System.nanoTime() - stalled); }
         }
-        int nextTail = (currTail + 1) % capacity; // inc safe since only this thread mutates
-        indexFlags.set(nextTail, 1);
-        tail = nextTail; //
-        return byteQueue[nextTail];
+        return byteQueue[(int) next & mask].clear();
     }
 
-    public byte[] getFirst() {
-        indexFlags.set(0, 1);
-        return byteQueue[0];
+    public ByteBuffer getFirst() {
+        return byteQueue[0].clear();
     }
 
     public int getState() {
         return state;
     }
 
-    public byte[] poll() {
-        int currHead = head;
-
-        while (isEmpty() || indexFlags.get(currHead) < 2) {
-            LockSupport.parkNanos(100);
+    public ByteBuffer poll() {
+        if (senderSeq >= cachedPublished) {
+            int round = 0;
+            long stalled = 0;
+            while (senderSeq >= (cachedPublished = published.get())) {
+                if (state < 0) { throw new IllegalStateException("Error reading file: " + file); }
+                if (round == 0) { stalled = System.nanoTime(); }
+                senderWait.idle(round++);
+            }
+            if (round > 0) { SENDER_STALL.add(System.nanoTime() - stalled); }
         }
-        return byteQueue[currHead];
+        return byteQueue[(int) senderSeq & mask];
     }
 
-    // The sets the buffers index flag back to zero to be reused, this needs to be 2 parts so data not yet written by
-    // the poller doesn't get overwritten.
+    // Hands the polled slab back to the reader, this needs to be separate from poll so data not yet sent doesn't
+    // get overwritten.
     public void finishedRead() {
-        int oldHead = head;
-        head = (oldHead + 1) % capacity; //inc  safe since only this thread mutates
-        indexFlags.set(oldHead, 0);
+        released.set(++senderSeq);
+        readerWait.signal();
     }
 
     public boolean isEmpty() {
-        return head == tail;
+        return senderSeq >= published.get();
     }
 
     public void close() {
         state = 0;
+        readerWait.signal();
+    }
+
+    // Closes and waits for the reader to stop touching the slabs, so they can go back to the arena
+    public void shutdown() {
+        close();
+        live.remove(this);
+        if (readerThread == null) { return; }
+        boolean interrupted = false;
+        while (readerThread.isAlive()) {
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) { Thread.currentThread().interrupt(); }
     }
 
     void printInfo() {
-        System.out.println("Head:" + head + "\ttail:" + tail + "\t" + indexFlags);
+        System.out.println("Published:" + published.get() + "\tReleased:" + released.get());
     }
 
     @Override
     public void run() {
-        byte[] buffer = getFirst();
-        try (FileInputStream inputFile = new FileInputStream(file)) {
-            int bytesRead;
-            while ((bytesRead = inputFile.read(buffer, 0, chunkSize)) != -1) {
-                buffer = swap(buffer, bytesRead);
+        ByteBuffer buffer = getFirst();
+        try (FileChannel inputFile = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             DirectReader direct = DirectReader.open(file, startOffset, buffer.capacity())) {
+            long position = startOffset; // resumed transfers skip what the server already has
+            boolean eof = false;
+            while (state > 0 && !eof) {
+                // Fill the whole slab, only the last one comes up short
+                long readStart = System.nanoTime();
+                if (direct != null) {
+                    direct.read(buffer);
+                    eof = direct.atEnd();
+                }
+                while (direct == null && buffer.hasRemaining()) {
+                    int bytesRead = inputFile.read(buffer, position);
+                    if (bytesRead == -1) {
+                        eof = true;
+                        break;
+                    }
+                    position += bytesRead;
+                }
+                SLAB_READ.since(readStart);
+                if (buffer.position() > 0) { buffer = swap(buffer); }
             }
-            swap(buffer, 0);
+            swap(buffer);
         } catch (IOException e) {
             System.out.println("Error reading file");
             state = -1;
+            senderWait.signal();
         }
     }
 }
-
@@ -0,0 +1,82 @@
+package dev.hickel;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+// Reads around the page cache with O_DIRECT for files under directReadDirectories, so sending a finished plot
+// doesn't push the plotter's working set out of memory. Buffers come from the BufferArena so they are aligned, the
+// start offset and buffer size must be multiples of the file system block size.
+public class DirectReader implements Closeable {
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+
+    private DirectReader(FileChannel channel, long position) throws IOException {
+        this.channel = channel;
+        this.position = position;
+        size = channel.size();
+    }
+
+    // Null if the file isn't under directReadDirectories or can't be read directly, the caller then reads normally
+    public static DirectReader open(File file, long position, int bufferSize) {
+        Path path = file.toPath();
+        if (!isDirectDirectory(path.getParent())) { return null; }
+        try {
+            int alignment = (int) Files.getFileStore(path).getBlockSize();
+            if (alignment > BufferArena.ALIGNMENT || position % alignment != 0 || bufferSize % alignment != 0) {
+                System.out.println("Read not aligned to the " + alignment + " byte block size, using the page cache: "
+                        + file.getName());
+                return null;
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+            try {
+                return new DirectReader(channel, position);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Direct reads not supported in: " + path.getParent() + ", using the page cache");
+            return null;
+        }
+    }
+
+    private static boolean isDirectDirectory(Path directory) {
+        Path dir = directory.toAbsolutePath().normalize();
+        return Settings.directReadDirectories.stream()
+                .anyMatch(d -> Path.of(d).toAbsolutePath().normalize().equals(dir));
+    }
+
+    // Fills the buffer, it only comes back short at the end of the file. Returns the bytes read, -1 at the end.
+    // Reads past the end return what is left, any further read would no longer be block sized so it stops there.
+    // The end is where the file ended when opened, a short read before it is read again rather than taken for the
+    // end, and a file that shrank since fails instead of sending less than it was announced as.
+    public int read(ByteBuffer buffer) throws IOException {
+        if (atEnd()) { return -1; }
+        int start = buffer.position();
+        while (buffer.hasRemaining() && position < size) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) { throw new IOException("File shrank while reading at: " + position + " of: " + size); }
+            position += bytesRead;
+        }
+        return buffer.position() - start;
+    }
+
+    public boolean atEnd() {
+        return position >= size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,159 @@
+package dev.hickel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+// Files in the monitored directories that match monitoredFileTypes, kept up to date from file system events so the
+// dispatch loop doesn't list every directory for every server on each check. Directories are listed once when they
+// are added and then every rescanInterval, in case events were lost.
+public class FileCatalog implements Runnable {
+    private record Entry(File file, long size, long modified, long changedAt) { }
+
+    private final ConcurrentHashMap<Path, Entry> files = new ConcurrentHashMap<>();
+    private final HashMap<Path, WatchKey> watched = new HashMap<>(); // guarded by this
+    private final Set<Path> failedDirectories = new HashSet<>();    // guarded by this
+    private final WatchService watcher;
+    private volatile List<String> fileTypes = List.of();
+    private volatile boolean rescan = false;
+    private long lastScan = System.currentTimeMillis();
+
+    public FileCatalog() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "file-catalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Called before every dispatch, picks up directory and file type changes from a reloaded config
+    public synchronized void refresh(List<String> directories, List<String> types) {
+        if (!types.equals(fileTypes)) {
+            fileTypes = List.copyOf(types);
+            rescan = !watched.isEmpty();
+        }
+        Set<Path> dirs = new HashSet<>();
+        for (String dir : directories) { dirs.add(Path.of(dir).toAbsolutePath().normalize()); }
+
+        for (var iter = watched.entrySet().iterator(); iter.hasNext(); ) {
+            var next = iter.next();
+            if (dirs.contains(next.getKey())) { continue; }
+            next.getValue().cancel();
+            iter.remove();
+            forget(next.getKey());
+        }
+        failedDirectories.retainAll(dirs);
+        for (Path dir : dirs) {
+            if (watched.containsKey(dir)) { continue; }
+            try {
+                watched.put(dir, dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+                failedDirectories.remove(dir);
+                scan(dir, true);
+            } catch (IOException e) {
+                // Retried every check, only reported once
+                if (failedDirectories.add(dir)) { System.out.println("Failed to watch directory: " + dir); }
+            }
+        }
+
+        if (rescan || System.currentTimeMillis() - lastScan >= Settings.rescanInterval * 1000L) {
+            rescan = false;
+            lastScan = System.currentTimeMillis();
+            watched.keySet().forEach(dir -> scan(dir, false));
+        }
+    }
+
+    // Files that haven't changed for fileSettleTime, oldest first. Each one is checked again on disk, a change that
+    // slipped past the events only delays it
+    public List<File> readyFiles() {
+        long now = System.currentTimeMillis();
+        long settle = Settings.fileSettleTime * 1000L;
+        List<Entry> ready = new ArrayList<>();
+        for (var next : files.entrySet()) {
+            Entry entry = next.getValue();
+            if (now - entry.changedAt < settle) { continue; }
+            if (entry.file.length() != entry.size || entry.file.lastModified() != entry.modified) {
+                update(next.getKey(), false);
+                continue;
+            }
+            ready.add(entry);
+        }
+        ready.sort(Comparator.comparingLong(Entry::changedAt));
+        return ready.stream().map(Entry::file).toList();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    rescan = true;
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_DELETE) {
+                    files.remove(path);
+                } else {
+                    update(path, false);
+                }
+            }
+            // The directory was removed or became unreadable, it is registered again once it's back
+            if (!key.reset()) {
+                synchronized (this) {
+                    if (watched.remove(dir, key)) { forget(dir); }
+                }
+            }
+        }
+    }
+
+    private void scan(Path dir, boolean initial) {
+        File[] listed = dir.toFile().listFiles();
+        Set<Path> seen = new HashSet<>();
+        if (listed != null) {
+            for (File file : listed) {
+                Path path = file.toPath();
+                seen.add(path);
+                update(path, initial);
+            }
+        }
+        files.keySet().removeIf(path -> path.getParent().equals(dir) && !seen.contains(path));
+    }
+
+    // Files already there when a directory is first listed count as changed at their modified time, so old files go
+    // out right away. Anything seen changing later has to settle from when it was seen.
+    private void update(Path path, boolean initial) {
+        File file = path.toFile();
+        if (!file.isFile() || !fileTypes.contains(getExt(file))) {
+            files.remove(path);
+            return;
+        }
+        long size = file.length();
+        long modified = file.lastModified();
+        files.compute(path, (key, previous) -> {
+            if (previous != null && previous.size == size && previous.modified == modified) { return previous; }
+            long now = System.currentTimeMillis();
+            return new Entry(file, size, modified, initial ? Math.min(modified, now) : now);
+        });
+    }
+
+    private void forget(Path dir) {
+        files.keySet().removeIf(path -> path.getParent().equals(dir));
+    }
+
+    private static String getExt(File file) {
+        return file.getName().substring(file.getName().lastIndexOf('.') + 1);
+    }
+}
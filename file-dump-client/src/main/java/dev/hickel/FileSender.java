@@ -1,7 +1,9 @@
 package dev.hickel;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.concurrent.locks.LockSupport;
 
@@ -13,6 +15,9 @@ public class FileSender implements Runnable {
     private final int chunkSize;
     private final int blockSize;
     private final Socket socket;
+    private final RateLimiter limiter;
+    private DirectReader direct;
+    private ByteBuffer[] directSlab;
 
     public FileSender(File file, String address, int port) throws IOException {
         fileSize = file.length();
@@ -23,22 +28,21 @@ public class FileSender implements Runnable {
         socket = new Socket(address, port);
         socket.setSoTimeout(120_000);
         socket.setTrafficClass(24);
+        limiter = RateLimiter.of(socket, address, port);
     }
 
     @Override
     public void run() {
-        try (DataOutputStream socketOut = new DataOutputStream(socket.getOutputStream());
+        long startCpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        try (DataOutputStream socketOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), FrameOutput.SOCKET_BUFFER_SIZE));
              DataInputStream socketIn = new DataInputStream(socket.getInputStream());
              FileInputStream inputFile = new FileInputStream(file)) {
 
-            // Send file info
-            socketOut.writeUTF(fileName);
-            socketOut.writeLong(fileSize);
-            socketOut.flush();
-
-            boolean accepted = socketIn.readBoolean();
-            if (!accepted) {
-                Main.activeTransfers.remove(fileName);
+            // Send file info, resumes if the server holds a matching partial file
+            Handshake handshake = Handshake.perform(socketIn, socketOut, file, fileName, fileSize, chunkSize);
+            if (!handshake.accepted) {
+                Main.activeTransfers.rejected(fileName);
                 System.out.println("No space for, file already exists, or all paths in use: " + fileName
                         + " will retry in: " + Settings.fileCheckInterval + " Seconds"
                         + " | Host: " + socket.getInetAddress().getHostAddress());
@@ -49,20 +53,32 @@ public class FileSender implements Runnable {
                     + "Host: " + socket.getInetAddress().getHostAddress()
             );
 
+            // v2 reads whole chunks and sends them as large frames, v1 sends each blockSize read as it is
+            inputFile.getChannel().position(handshake.startOffset);
+            FrameOutput frames = handshake.frameOutput(socketOut, blockSize, limiter);
             int bytesRead;
-            byte[] buffer = new byte[blockSize];
-            while ((bytesRead = inputFile.read(buffer, 0, blockSize)) != -1) {
-                socketOut.writeInt(bytesRead);
-                socketOut.write(buffer, 0, bytesRead);
-                socketOut.flush();
+            byte[] buffer = new byte[handshake.frameSize > 0 ? chunkSize : blockSize];
+            openDirect(handshake.startOffset, buffer.length);
+            while (true) {
+                try {
+                    bytesRead = direct != null ? readDirect(buffer) : inputFile.read(buffer, 0, buffer.length);
+                } catch (IOException e) {
+                    frames.writeError("Error reading file: " + e.getMessage());
+                    throw e;
+                }
+                if (bytesRead == -1) { break; }
+                if (handshake.checksum != null) { handshake.checksum.update(buffer, 0, bytesRead); }
+                frames.writeData(buffer, 0, bytesRead);
             }
-            socketOut.writeInt(-1);
-            socketOut.flush();
+            frames.writeEnd(handshake.checksum);
 
             boolean success = socketIn.readBoolean(); // wait for servers last write, to avoid an exception on quick disconnect
             if (success) {
+                Main.activeTransfers.finished(fileName, fileSize - handshake.startOffset);
                 System.out.println("Finished transfer for file: " + fileName
-                        + "| Host: " + socket.getInetAddress().getHostAddress());
+                        + "| Host: " + socket.getInetAddress().getHostAddress()
+                        + "\tCPU: " + Settings.cpuMsPerGiB(startCpu, fileSize - handshake.startOffset) + " ms/GiB"
+                        + handshake.checksumStats());
             } else {
                 System.out.println("Error during finalization of file transfer");
                 Main.activeTransfers.remove(fileName);
@@ -90,7 +106,7 @@ public class FileSender implements Runnable {
                     + " | Host: " + socket.getInetAddress().getHostAddress());
             }
         } finally {
-            System.gc();
+            closeDirect();
             if (socket != null) {
                 try { socket.close(); } catch (IOException e) { System.out.println("Error closing socket"
                         + "| Host: " + socket.getInetAddress().getHostAddress());
@@ -99,4 +115,33 @@ public class FileSender implements Runnable {
 
         }
     }
+
+    // Direct reads need an aligned buffer, chunks are read into an arena slab and copied out to the frame buffer
+    private void openDirect(long startOffset, int bufferSize) {
+        direct = DirectReader.open(file, startOffset, bufferSize);
+        if (direct == null) { return; }
+        directSlab = BufferArena.acquire(1, bufferSize);
+        if (directSlab == null) {
+            System.out.println("Memory budget reached, reading through the page cache: " + fileName);
+            closeDirect();
+        }
+    }
+
+    private int readDirect(byte[] buffer) throws IOException {
+        ByteBuffer slab = directSlab[0].clear();
+        int bytesRead = direct.read(slab);
+        if (bytesRead > 0) { slab.flip().get(buffer, 0, bytesRead); }
+        return bytesRead;
+    }
+
+    private void closeDirect() {
+        if (direct != null) {
+            try { direct.close(); } catch (IOException ignored) { }
+            direct = null;
+        }
+        if (directSlab != null) {
+            BufferArena.release(directSlab);
+            directSlab = null;
+        }
+    }
 }
@@ -0,0 +1,99 @@
+package dev.hickel;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+
+// Writes file data in the framing negotiated by the handshake. v1 is int length + payload flushed per frame with the
+// checksum after the -1 EOF, v2 adds a type byte to every header and leaves flushing to the sender. Every data frame
+// waits on the rate limiter first.
+public class FrameOutput {
+    // Senders wrap the socket in a buffer this size so headers go out with the data instead of on their own
+    public static final int SOCKET_BUFFER_SIZE = 65536;
+    public static final Metrics.Counter SENT_BYTES = Metrics.counter("filedump_sent_bytes_total", "File bytes sent");
+    private final DataOutputStream socketOut;
+    private final boolean v2;
+    private final int frameSize;
+    private final RateLimiter limiter;
+    private final ByteBuffer[] gather = {ByteBuffer.allocateDirect(5), null};
+
+    public FrameOutput(DataOutputStream socketOut, boolean v2, int frameSize) {
+        this(socketOut, v2, frameSize, RateLimiter.NONE);
+    }
+
+    public FrameOutput(DataOutputStream socketOut, boolean v2, int frameSize, RateLimiter limiter) {
+        this.socketOut = socketOut;
+        this.v2 = v2;
+        this.frameSize = frameSize;
+        this.limiter = limiter;
+    }
+
+    public void writeData(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int frame = Math.min(length, frameSize);
+            limiter.acquire(frame);
+            writeHeader(Protocol.FRAME_DATA, frame);
+            socketOut.write(buffer, offset, frame);
+            SENT_BYTES.add(frame);
+            if (!v2) { socketOut.flush(); }
+            offset += frame;
+            length -= frame;
+        }
+    }
+
+    // Header and payload go out in one gathering write straight from the slab, anything buffered in socketOut must
+    // already be flushed
+    public void writeData(SocketChannel channel, ByteBuffer data) throws IOException {
+        ByteBuffer header = gather[0];
+        while (data.hasRemaining()) {
+            int frame = Math.min(data.remaining(), frameSize);
+            limiter.acquire(frame);
+            header.clear();
+            if (v2) { header.put((byte) Protocol.FRAME_DATA); }
+            header.putInt(frame).flip();
+            ByteBuffer payload = data.slice(data.position(), frame);
+            gather[1] = payload;
+            while (payload.hasRemaining()) { channel.write(gather); }
+            SENT_BYTES.add(frame);
+            data.position(data.position() + frame);
+        }
+        gather[1] = null;
+    }
+
+    public void writeEnd(Checksum checksum) throws IOException {
+        if (v2) {
+            if (checksum != null) {
+                writeHeader(Protocol.FRAME_CHECKSUM, 8);
+                socketOut.writeLong(checksum.getValue());
+            }
+            writeHeader(Protocol.FRAME_EOF, 0);
+        } else {
+            socketOut.writeInt(-1);
+            if (checksum != null) { socketOut.writeLong(checksum.getValue()); }
+        }
+        socketOut.flush();
+    }
+
+    // Lets a v2 server tell a failed read apart from a lost connection, v1 has no way to say it
+    public void writeError(String message) {
+        if (!v2) { return; }
+        try {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            writeHeader(Protocol.FRAME_ERROR, bytes.length);
+            socketOut.write(bytes);
+            socketOut.flush();
+        } catch (IOException ignored) { } // the connection is closed right after either way
+    }
+
+    public void flush() throws IOException {
+        socketOut.flush();
+    }
+
+    private void writeHeader(int type, int length) throws IOException {
+        if (v2) { socketOut.writeByte(type); }
+        socketOut.writeInt(length);
+    }
+}
@@ -0,0 +1,91 @@
+package dev.hickel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+
+// Client side of the handshake shared by the single stream senders. Sends the v1 header and, when the server
+// accepts extensions, asks to resume from a partial file left on the server by an interrupted transfer, to
+// verify the transfer with a checksum and for v2 framing.
+public class Handshake {
+    public final boolean accepted;
+    public final long startOffset;  // bytes the server already has, sending starts here
+    public final Checksum checksum; // set when the server expects a checksum after the data
+    public final int frameSize;     // negotiated v2 frame size, 0 when the server only speaks v1
+
+    private Handshake(boolean accepted, long startOffset, Checksum checksum, int frameSize) {
+        this.accepted = accepted;
+        this.startOffset = startOffset;
+        this.checksum = checksum;
+        this.frameSize = frameSize;
+    }
+
+    // preferredFrameSize is the v2 frame size to ask for, the server may lower it
+    public static Handshake perform(DataInputStream socketIn, DataOutputStream socketOut, File file, String fileName,
+            long fileSize, int preferredFrameSize) throws IOException {
+        socketOut.writeUTF(fileName);
+        socketOut.writeLong(fileSize);
+        socketOut.flush();
+
+        int reply = socketIn.readUnsignedByte();
+        if (reply == Protocol.REJECTED) { return new Handshake(false, 0, null, 0); }
+        int requested = (Settings.resumeTransfers ? Protocol.FLAG_RESUME : 0)
+                | (Settings.checksumTransfers ? Protocol.FLAG_CHECKSUM : 0)
+                | (Settings.protocolVersion >= 2 ? Protocol.FLAG_V2 : 0);
+        if (reply != Protocol.ACCEPTED_EXTENDED || requested == 0) { return new Handshake(true, 0, null, 0); }
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        if ((requested & Protocol.FLAG_V2) != 0) { new DataOutputStream(request).writeInt(preferredFrameSize); }
+        Protocol.writeExtension(socketOut, requested, request);
+        int flags = socketIn.readInt();
+        DataInputStream fields = Protocol.readBlock(socketIn);
+
+        // Response fields come in ascending flag order
+        long startOffset = 0;
+        if ((flags & Protocol.FLAG_RESUME) != 0) {
+            long partialLength = fields.readLong();
+            int tailLength = fields.readInt();
+            long tailCrc = fields.readLong();
+            if (partialLength > 0 && partialLength <= fileSize && tailLength <= partialLength) {
+                if (tailChecksum(file, partialLength - tailLength, tailLength) == tailCrc) {
+                    startOffset = partialLength;
+                    System.out.println("Resuming transfer of: " + fileName + " at: " + startOffset / 1048576 + " MiB");
+                } else {
+                    System.out.println("Partial file on server does not match, sending from start: " + fileName);
+                }
+            }
+        }
+        Checksum checksum = (flags & Protocol.FLAG_CHECKSUM) != 0 ? new Checksum() : null;
+        int frameSize = (flags & Protocol.FLAG_V2) != 0 ? fields.readInt() : 0;
+
+        if ((flags & Protocol.FLAG_RESUME) != 0) {
+            socketOut.writeLong(startOffset);
+            socketOut.flush();
+        }
+        return new Handshake(true, startOffset, checksum, frameSize);
+    }
+
+    // v1 has no negotiated size, frames are v1FrameSize there
+    public FrameOutput frameOutput(DataOutputStream socketOut, int v1FrameSize, RateLimiter limiter) {
+        return new FrameOutput(socketOut, frameSize > 0, frameSize > 0 ? frameSize : v1FrameSize, limiter);
+    }
+
+    public String checksumStats() {
+        return checksum != null ? "\tChecksum: " + checksum.getMillis() + " ms" : "";
+    }
+
+    private static long tailChecksum(File file, long position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) { break; }
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.flip());
+            return crc.getValue();
+        }
+    }
+}
@@ -2,58 +2,75 @@ package dev.hickel;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
 
 
 public class Main {
-    public static final ConcurrentHashMap<String, String> activeTransfers = new ConcurrentHashMap<>(10);
+    public static final ActiveTransfers activeTransfers = new ActiveTransfers();
+    private static final Set<String> failedCapacityQueries = ConcurrentHashMap.newKeySet();
+    private static final Set<String> capacityQueries = ConcurrentHashMap.newKeySet(); // servers being asked
 
     public static void main(String[] args) throws IOException {
-        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
-                Settings.maxTransfers.stream().mapToInt(Integer::intValue).sum() + 1
-        );
-
         try { Settings.load(); } catch (IOException e) {
             System.out.println("Failed to load config, exiting...");
             throw new RuntimeException(e);
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(executor::shutdownNow));
+        Metrics.gauge("filedump_buffer_arena_bytes", "Read buffer bytes in use", BufferArena::getInUse);
+        Metrics.export("0.0.0.0", Settings.metricsPort);
 
-        final Predicate<File> eligibleFile = file -> file.isFile() && !activeTransfers.containsKey(file.getName())
-                && Settings.monitoredFileTypes.contains(getExt(file));
+        // With virtual threads the scheduler only runs the dispatch loop, each transfer gets its own virtual thread
+        final boolean virtual = VirtualThreads.enabled();
+        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+                virtual ? 1 : Settings.maxTransfers.stream().mapToInt(Integer::intValue).sum() + 1
+        );
+        final ExecutorService transferExecutor = virtual ? VirtualThreads.newExecutor() : executor;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            executor.shutdownNow();
+            transferExecutor.shutdownNow();
+        }));
 
-        final BiPredicate<String, Integer> limitMet = (address, limit) ->
-                activeTransfers.values().stream().filter(e -> e.equals(address)).count() >= limit;
+        // One catalog for all servers, fed by file system events instead of listing every directory per server
+        final FileCatalog catalog = new FileCatalog();
+        catalog.start();
+
+        final Predicate<File> eligibleFile = file -> !activeTransfers.containsKey(file.getName());
+
+        final BiPredicate<String, Integer> limitMet = activeTransfers::limitMet;
 
         executor.scheduleAtFixedRate(() -> {
             try {
                 Settings.load(); // Can just stick this here instead of giving it its own thread
+                catalog.refresh(Settings.monitoredDirectories, Settings.monitoredFileTypes);
+                final List<File> readyFiles = catalog.readyFiles();
+                final List<String> servers = new ArrayList<>(Settings.serverAddresses.size());
                 for (int i = 0; i < Settings.serverAddresses.size(); i++) {
-                    final String addr = Settings.serverAddresses.get(i);
-                    final int limit = Settings.maxTransfers.get(i);
-                    final int port = Settings.serverPorts.get(i);
-                    if (limitMet.test(addr + port, Settings.maxTransfers.get(i))) { continue; }
-                    Settings.monitoredDirectories.stream()
-                            .map(File::new)
-                            .map(dir -> Optional.ofNullable(dir.listFiles()))
-                            .flatMap(optFiles -> optFiles.stream().flatMap(Stream::of))
-                            .forEach(file -> {
-                                if (eligibleFile.test(file) && !limitMet.test(addr + port, limit)) {
-                                    try {
-                                        activeTransfers.put(file.getName(), addr + port);
-                                        executor.submit(Settings.separateThreadForReading
-                                                                ? new QueuedFileSender(file, addr, port)
-                                                                : new FileSender(file, addr, port));
-                                    } catch (IOException e) {
-                                        System.out.println("Failed to connect to server: " + file);
-                                        activeTransfers.remove(file.getName());
-                                    }
-                                }
-                            });
+                    servers.add(ActiveTransfers.serverKey(Settings.serverAddresses.get(i), Settings.serverPorts.get(i)));
+                }
+                if (readyFiles.stream().anyMatch(eligibleFile)) { refreshCapacity(servers); }
+                // Each file goes to the best scoring server with a free slot
+                for (File file : readyFiles) {
+                    if (!eligibleFile.test(file)) { continue; }
+                    final int serverIndex = activeTransfers.pick(servers, Settings.maxTransfers, file.length());
+                    if (serverIndex < 0) { continue; } // a smaller file may still fit
+                    if (servers.size() > 1) {
+                        System.out.println("Sending: " + file.getName() + " to: " + servers.get(serverIndex)
+                                + " | Scores: " + activeTransfers.scores(servers, file.length()));
+                    }
+                    try {
+                        activeTransfers.put(file.getName(), servers.get(serverIndex), file.length());
+                        transferExecutor.submit(newSender(file, serverIndex, limitMet));
+                    } catch (IOException e) {
+                        System.out.println("Failed to connect to server: " + file);
+                        activeTransfers.rejected(file.getName());
+                    } catch (IllegalStateException e) {
+                        System.out.println("Memory budget reached, deferring: " + file);
+                        activeTransfers.remove(file.getName());
+                    }
                 }
 
             } catch (UnsupportedOperationException e) {
@@ -69,8 +86,72 @@ public class Main {
         }, 0, Settings.fileCheckInterval, TimeUnit.SECONDS);
     }
 
-    private static String getExt(File file) {
-        return file.getName().substring(file.getName().lastIndexOf('.') + 1);
+    // One small query per server and check instead of a connection for every file it would reject. Queries run
+    // off the dispatch thread, a slow or unreachable server only delays its own answer and dispatch goes on with
+    // the last one, taken off as files are sent to it.
+    private static void refreshCapacity(List<String> servers) {
+        for (int i = 0; i < servers.size(); i++) {
+            final String server = servers.get(i);
+            final String address = Settings.serverAddresses.get(i);
+            final int capacityPort = i < Settings.capacityPorts.size() ? Settings.capacityPorts.get(i) : 0;
+            if (capacityPort <= 0) {
+                activeTransfers.setCapacity(server, null);
+                continue;
+            }
+            if (!capacityQueries.add(server)) { continue; } // still waiting on the last one
+            VirtualThreads.start(() -> {
+                ServerCapacity capacity = null;
+                try {
+                    capacity = ServerCapacity.query(address, capacityPort);
+                    failedCapacityQueries.remove(server);
+                } catch (IOException e) {
+                    if (failedCapacityQueries.add(server)) {
+                        System.out.println("Capacity query failed, connecting without it | Host: " + server
+                                + "\tReason: " + e.getMessage());
+                    }
+                } finally {
+                    activeTransfers.setCapacity(server, capacity);
+                    capacityQueries.remove(server);
+                }
+            });
+        }
+    }
+
+    private static Runnable newSender(File file, int serverIndex, BiPredicate<String, Integer> limitMet)
+            throws IOException {
+        final String addr = Settings.serverAddresses.get(serverIndex);
+        final int port = Settings.serverPorts.get(serverIndex);
+        if (Settings.stripes > 1 && file.length() >= Settings.minStripeSize) {
+            // Every extra stripe takes a transfer slot on its destination, stripe with as many as are free
+            List<String> addresses = new ArrayList<>(List.of(addr));
+            List<Integer> ports = new ArrayList<>(List.of(port));
+            for (int k = 1; k < Settings.stripes; k++) {
+                int dest = Settings.stripeAcrossAddresses ? (serverIndex + k) % Settings.serverAddresses.size() : serverIndex;
+                String destAddr = Settings.serverAddresses.get(dest);
+                int destPort = Settings.serverPorts.get(dest);
+                String destKey = ActiveTransfers.serverKey(destAddr, destPort);
+                if (limitMet.test(destKey, Settings.maxTransfers.get(dest))) { break; }
+                activeTransfers.put(StripedFileSender.slotName(file.getName(), k), destKey,
+                                    file.length() / Settings.stripes);
+                addresses.add(destAddr);
+                ports.add(destPort);
+            }
+            if (addresses.size() > 1) {
+                try {
+                    return new StripedFileSender(file, addresses, ports);
+                } catch (IOException e) {
+                    for (int k = 1; k < addresses.size(); k++) {
+                        activeTransfers.remove(StripedFileSender.slotName(file.getName(), k));
+                    }
+                    throw e;
+                }
+            }
+        }
+        if (Settings.transferMode.equals("zerocopy")) { return new ZeroCopyFileSender(file, addr, port); }
+        if (Settings.transferMode.equals("mmap")) { return new MappedFileSender(file, addr, port); }
+        return Settings.separateThreadForReading
+                ? new QueuedFileSender(file, addr, port)
+                : new FileSender(file, addr, port);
     }
 
 
@@ -0,0 +1,175 @@
+package dev.hickel;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+
+// Maps the file in windows of mmapWindowSize and writes the mapped memory straight to the socket channel, the data
+// is copied once by the kernel instead of read into a slab first. While a window is sent the next one is mapped and
+// loaded on a helper thread (madvise WILLNEED plus touching each page), and every window is unmapped as soon as it
+// has been sent so the mappings don't pile up waiting for the gc.
+public class MappedFileSender implements Runnable {
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+    private final String fileName;
+    private final long fileSize;
+    private final File file;
+    private final int chunkSize;
+    private final int blockSize;
+    private final int windowSize;
+    private final SocketChannel socketChannel;
+    private final RateLimiter limiter;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Unmapping not available, mapped windows are released by the gc");
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    public MappedFileSender(File file, String address, int port) throws IOException {
+        fileSize = file.length();
+        fileName = file.getName();
+        this.file = file;
+        chunkSize = Settings.chunkSize;
+        blockSize = Settings.blockSize;
+        windowSize = Settings.mmapWindowSize;
+        socketChannel = SocketChannel.open(new InetSocketAddress(address, port));
+        socketChannel.socket().setSoTimeout(120_000);
+        socketChannel.socket().setTrafficClass(24);
+        if (Settings.socketBufferSize > 0) { socketChannel.socket().setSendBufferSize(Settings.socketBufferSize); }
+        limiter = RateLimiter.of(socketChannel.socket(), address, port);
+    }
+
+    @Override
+    public void run() {
+        String host = socketChannel.socket().getInetAddress().getHostAddress();
+        long startCpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        var startTime = System.currentTimeMillis();
+        try (DataOutputStream socketOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+             DataInputStream socketIn = new DataInputStream(socketChannel.socket().getInputStream());
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            // Send file info, resumes if the server holds a matching partial file
+            Handshake handshake = Handshake.perform(socketIn, socketOut, file, fileName, fileSize, chunkSize);
+            if (!handshake.accepted) {
+                Main.activeTransfers.rejected(fileName);
+                System.out.println("No space for, file already exists, or all paths in use: " + fileName
+                        + " will retry in: " + Settings.fileCheckInterval + " Seconds"
+                        + " | Host: " + host);
+                return;
+            }
+
+            System.out.println("Started mapped transfer of file: " + fileName + " | Host: " + host);
+
+            FrameOutput frames = handshake.frameOutput(socketOut, blockSize, limiter);
+            sendWindows(fileChannel, frames, handshake.startOffset, handshake.checksum);
+            frames.writeEnd(handshake.checksum); // Send EOF
+
+            boolean success = socketIn.readBoolean(); // wait for servers last write, to avoid an exception on quick disconnect
+            if (success) {
+                Main.activeTransfers.finished(fileName, fileSize - handshake.startOffset);
+                long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+                System.out.println("Finished transfer for file: " + fileName + " | Host: " + host
+                        + "\tSpeed: " + Math.round((double) (fileSize - handshake.startOffset) / 1048576 / seconds) + " MiBs"
+                        + "\tCPU: " + Settings.cpuMsPerGiB(startCpu, fileSize - handshake.startOffset) + " ms/GiB"
+                        + handshake.checksumStats());
+            } else {
+                System.out.println("Error during finalization of file transfer");
+                Main.activeTransfers.remove(fileName);
+                throw new IllegalStateException("Server responded to end of transfer as failed | Host: " + host);
+            }
+            if (Settings.deleteAfterTransfer) {
+                Files.delete(file.toPath());
+                System.out.println("Deleted file: " + file);
+            }
+            Main.activeTransfers.remove(fileName);
+
+        } catch (IOException e) {
+            Main.activeTransfers.remove(fileName);
+            System.out.println("Error in file transfer, most likely connection was lost. | Host: " + host);
+            e.printStackTrace();
+        } catch (Exception e) {
+            Main.activeTransfers.remove(fileName);
+            e.printStackTrace();
+        } finally {
+            try { socketChannel.close(); } catch (IOException e) {
+                System.out.println("Error closing socket | Host: " + host);
+            }
+        }
+    }
+
+    private void sendWindows(FileChannel fileChannel, FrameOutput frames, long position, Checksum checksum)
+            throws IOException {
+        MappedByteBuffer window = map(fileChannel, position);
+        MappedByteBuffer next = null;
+        Thread loader = null;
+        try {
+            while (window != null) {
+                // The loader must be done with the next window before it is sent and later unmapped
+                next = map(fileChannel, position + window.capacity());
+                if (next != null) { loader = VirtualThreads.start(next::load); }
+
+                if (checksum != null) { checksum.update(window.duplicate()); }
+                frames.writeData(socketChannel, window);
+                position += window.capacity();
+                unmap(window);
+                window = null;
+
+                join(loader);
+                loader = null;
+                window = next;
+                next = null;
+            }
+        } finally {
+            join(loader);
+            if (window != null) { unmap(window); }
+            if (next != null) { unmap(next); }
+        }
+    }
+
+    private MappedByteBuffer map(FileChannel fileChannel, long position) throws IOException {
+        if (position >= fileSize) { return null; }
+        if (fileChannel.size() < fileSize) { throw new IOException("File truncated during transfer"); }
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, fileSize - position));
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) { return; }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) { Thread.currentThread().interrupt(); }
+    }
+
+    // The mapping can't be touched afterwards, only call once nothing else holds the window
+    private static void unmap(MappedByteBuffer window) {
+        if (INVOKE_CLEANER == null) { return; }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, window);
+        } catch (ReflectiveOperationException ignored) { } // left to the gc
+    }
+}
@@ -1,9 +1,12 @@
 package dev.hickel;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
-import java.util.concurrent.locks.LockSupport;
 
 
 public class QueuedFileSender implements Runnable {
@@ -12,69 +15,79 @@ public class QueuedFileSender implements Runnable {
     private final File file;
     private final int chunkSize;
     private final int blockSize;
+    private final SocketChannel socketChannel;
     private final Socket socket;
+    private final RateLimiter limiter;
+    private final ByteBuffer[] slabs;
+    private CircularBufferQueue bufferQueue;
 
+    // Throws IllegalStateException when the memory budget can't fit another transfer's buffers
     public QueuedFileSender(File file, String address, int port) throws IOException {
         fileSize = file.length();
         fileName = file.getName();
         this.file = file;
         chunkSize = Settings.chunkSize;
         blockSize = Settings.blockSize;
-        socket = new Socket(address, port);
-        socket.setSoTimeout(120_000);
-        socket.setTrafficClass(24);
+        slabs = BufferArena.acquire(CircularBufferQueue.ringSize(Settings.readQueueSize), chunkSize);
+        if (slabs == null) { throw new IllegalStateException("Memory budget reached"); }
+        try {
+            socketChannel = SocketChannel.open(new InetSocketAddress(address, port));
+            socket = socketChannel.socket();
+            socket.setSoTimeout(120_000);
+            socket.setTrafficClass(24);
+            limiter = RateLimiter.of(socket, address, port);
+        } catch (IOException e) {
+            BufferArena.release(slabs);
+            throw e;
+        }
     }
 
     @Override
     public void run() {
-        try (DataOutputStream socketOut = new DataOutputStream(socket.getOutputStream());
+        long startCpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        try (DataOutputStream socketOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), FrameOutput.SOCKET_BUFFER_SIZE));
              DataInputStream socketIn = new DataInputStream(socket.getInputStream())) {
 
-            // Send file info
-            socketOut.writeUTF(fileName);
-            socketOut.writeLong(fileSize);
-            socketOut.flush();
-
-            boolean accepted = socketIn.readBoolean();
-            if (!accepted) {
-                Main.activeTransfers.remove(fileName);
+            // Send file info, resumes if the server holds a matching partial file
+            Handshake handshake = Handshake.perform(socketIn, socketOut, file, fileName, fileSize, chunkSize);
+            if (!handshake.accepted) {
+                Main.activeTransfers.rejected(fileName);
                 System.out.println("No space for, file already exists, or all paths in use: " + fileName
                                            + " will retry in: " + Settings.fileCheckInterval + " Seconds"
                         + "| Host: " + socket.getInetAddress().getHostAddress());
                 return;
             }
-            CircularBufferQueue bufferQueue = new CircularBufferQueue(file);
-            new Thread(bufferQueue).start();
+            bufferQueue = new CircularBufferQueue(file, handshake.startOffset, handshake.checksum, slabs);
+            bufferQueue.start();
             System.out.println("Started transfer of file: " + fileName
                     + "| Host: " + socket.getInetAddress().getHostAddress());
 
 
-            // Loop through until the "null" size 0 array is returned from the buffer queue.
-            byte[] currBuffer;
-            int currSize;
-            int byteWritten;
+            // Loop through until the empty terminating buffer is returned from the buffer queue.
+            FrameOutput frames = handshake.frameOutput(socketOut, blockSize, limiter);
+            ByteBuffer currBuffer;
             while (true) {
-                currBuffer = bufferQueue.poll();
-                currSize = currBuffer.length;
-                byteWritten = 0;
-                if (currSize == 0) { break; }
-                for (int i = 0; i < currSize; i += blockSize) {
-                    int byteSize = (Math.min(currSize - byteWritten, blockSize));
-                    socketOut.writeInt(byteSize);
-                    socketOut.write(currBuffer, i, byteSize);
-                    socketOut.flush();
-                    byteWritten += byteSize;
+                try {
+                    currBuffer = bufferQueue.poll();
+                } catch (IllegalStateException e) {
+                    frames.writeError(e.getMessage());
+                    throw e;
                 }
+                if (!currBuffer.hasRemaining()) { break; }
+                frames.writeData(socketChannel, currBuffer);
                 bufferQueue.finishedRead();
             }
-            socketOut.writeInt(-1); // Send EOF
-            socketOut.flush();
+            frames.writeEnd(handshake.checksum); // Send EOF
 
             boolean success = socketIn.readBoolean(); // wait for servers last write, to avoid an exception on quick disconnect
             socket.close();
             if (success) {
+                Main.activeTransfers.finished(fileName, fileSize - handshake.startOffset);
                 System.out.println("Finished transfer for file: " + fileName
-                        + "| Host: " + socket.getInetAddress().getHostAddress());
+                        + "| Host: " + socket.getInetAddress().getHostAddress()
+                        + "\tCPU: " + Settings.cpuMsPerGiB(startCpu, fileSize - handshake.startOffset) + " ms/GiB"
+                        + handshake.checksumStats());
             } else {
                 System.out.println("Error during finalization of file transfer"
                         + "| Host: " + socket.getInetAddress().getHostAddress());
@@ -86,7 +99,6 @@ public class QueuedFileSender implements Runnable {
                 Files.delete(file.toPath());
                 System.out.println("Deleted file: " + file);
             }
-            bufferQueue.close();
             Main.activeTransfers.remove(fileName);
         } catch (IOException e) {
             Main.activeTransfers.remove(fileName);
@@ -102,7 +114,8 @@ public class QueuedFileSender implements Runnable {
             try { socket.close(); } catch (IOException ee) { System.out.println("Error closing socket"
                     + "| Host: " + socket.getInetAddress().getHostAddress()); }
         } finally {
-            System.gc();
+            if (bufferQueue != null) { bufferQueue.shutdown(); }
+            BufferArena.release(slabs);
             if (socket != null) {
                 try { socket.close(); } catch (IOException e) { System.out.println("Error closing socket"
                         + "| Host: " + socket.getInetAddress().getHostAddress()); }
@@ -0,0 +1,165 @@
+package dev.hickel;
+
+import java.io.InterruptedIOException;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Bandwidth caps shared by every transfer: one bucket for everything sent, one per server and one per local network
+// interface. Senders ask for every frame before writing it. Each bucket hands out send times in the order frames
+// ask for them, so transfers sharing a cap take turns frame by frame and none of them starves. A bucket that was
+// idle lets up to BURST_NANOS worth of data through at once. Limits are read from Settings on every frame, so a
+// reloaded config applies to running transfers.
+public class RateLimiter {
+    public static final RateLimiter NONE = new RateLimiter(null, 0, null, null);
+    private static final long BURST_NANOS = 100_000_000;
+    private static final long MIB = 1048576;
+    private static final Bucket global = new Bucket();
+    private static final Metrics.Counter WAITED = Metrics.seconds("filedump_rate_limit_wait_seconds_total",
+            "Time transfers waited on bandwidth caps");
+    private static final Map<String, Bucket> servers = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket> nics = new ConcurrentHashMap<>();
+    private static volatile long globalRate = 0;
+    private static volatile long globalCheckedAt = System.nanoTime() - 2_000_000_000L; // checked on the first frame
+    private static volatile int lastGlobalLimit = 0;
+
+    private final String address;
+    private final int port;
+    private final String nic;
+    private final String localAddress;
+    private final Bucket server;
+    private final Bucket nicBucket;
+
+    private RateLimiter(String address, int port, String nic, String localAddress) {
+        this.address = address;
+        this.port = port;
+        this.nic = nic;
+        this.localAddress = localAddress;
+        server = address == null ? null : servers.computeIfAbsent(ActiveTransfers.serverKey(address, port), k -> new Bucket());
+        nicBucket = nic == null ? null : nics.computeIfAbsent(nic, k -> new Bucket());
+    }
+
+    // address and port as configured in serverAddresses/serverPorts, the interface is the one the socket left from
+    public static RateLimiter of(Socket socket, String address, int port) {
+        String localAddress = socket.getLocalAddress().getHostAddress();
+        String nic = localAddress;
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (networkInterface != null) { nic = networkInterface.getName(); }
+        } catch (SocketException ignored) { }
+        return new RateLimiter(address, port, nic, localAddress);
+    }
+
+    // Blocks until bytes may be sent under every cap that applies
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (this == NONE) { return; }
+        long now = System.nanoTime();
+        long rate = globalRate(now);
+        long sendAt = rate > 0 ? global.reserve(bytes, rate, now) : now;
+        rate = serverRate();
+        if (rate > 0) { sendAt = Math.max(sendAt, server.reserve(bytes, rate, now)); }
+        rate = nicRate();
+        if (rate > 0) { sendAt = Math.max(sendAt, nicBucket.reserve(bytes, rate, now)); }
+
+        long wait = sendAt - System.nanoTime();
+        if (wait <= 0) { return; }
+        WAITED.add(wait);
+        do {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) { throw new InterruptedIOException("Interrupted waiting on the rate limit"); }
+        } while ((wait = sendAt - System.nanoTime()) > 0);
+    }
+
+    // The schedule is only looked at once a second, not for every frame
+    private static long globalRate(long now) {
+        return now - globalCheckedAt < 1_000_000_000L ? globalRate : refreshGlobalRate(now);
+    }
+
+    private static synchronized long refreshGlobalRate(long now) {
+        if (now - globalCheckedAt < 1_000_000_000L) { return globalRate; }
+        int limit = Settings.rateLimit;
+        LocalTime time = LocalTime.now();
+        for (Window window : Settings.rateLimitSchedule) {
+            if (window.contains(time)) {
+                limit = window.rateMiB;
+                break;
+            }
+        }
+        if (limit != lastGlobalLimit) {
+            System.out.println("Global rate limit: " + (limit > 0 ? limit + " MiB/s" : "none"));
+            lastGlobalLimit = limit;
+        }
+        globalRate = limit * MIB;
+        globalCheckedAt = now;
+        return globalRate;
+    }
+
+    private long serverRate() {
+        List<String> addresses = Settings.serverAddresses;
+        List<Integer> ports = Settings.serverPorts;
+        List<Integer> limits = Settings.serverRateLimits;
+        int count = Math.min(Math.min(addresses.size(), ports.size()), limits.size());
+        for (int i = 0; i < count; i++) {
+            if (ports.get(i) == port && addresses.get(i).equals(address)) { return limits.get(i) * MIB; }
+        }
+        return 0;
+    }
+
+    // Keyed by interface name, or by the local address for sockets not bound to a known interface
+    private long nicRate() {
+        Map<String, Integer> limits = Settings.nicRateLimits;
+        if (limits.isEmpty()) { return 0; }
+        Integer limit = limits.get(nic);
+        if (limit == null) { limit = limits.get(localAddress); }
+        return limit == null ? 0 : limit * MIB;
+    }
+
+    private static class Bucket {
+        private long nextFree = System.nanoTime(); // when everything reserved so far has been sent, guarded by this
+
+        // Returns when the caller may send, its own bytes push back whoever asks next
+        synchronized long reserve(long bytes, long bytesPerSec, long now) {
+            if (nextFree < now - BURST_NANOS) { nextFree = now - BURST_NANOS; }
+            long sendAt = nextFree;
+            nextFree += bytes * 1_000_000_000L / bytesPerSec;
+            return sendAt;
+        }
+    }
+
+    // A daily window with its own global limit, "HH:mm-HH:mm MiB", may wrap past midnight
+    public record Window(LocalTime from, LocalTime to, int rateMiB) {
+
+        public boolean contains(LocalTime time) {
+            return from.isBefore(to)
+                    ? !time.isBefore(from) && time.isBefore(to)
+                    : !time.isBefore(from) || time.isBefore(to);
+        }
+
+        public static List<Window> parseAll(List<String> entries) {
+            List<Window> windows = new ArrayList<>();
+            for (String entry : entries) {
+                try {
+                    String[] parts = entry.trim().split("\\s+");
+                    String[] times = parts[0].split("-");
+                    windows.add(new Window(LocalTime.parse(times[0]), LocalTime.parse(times[1]),
+                                           Integer.parseInt(parts[1])));
+                } catch (RuntimeException e) {
+                    System.out.println("Invalid rateLimitSchedule entry, ignoring: " + entry);
+                }
+            }
+            return windows;
+        }
+
+        @Override
+        public String toString() {
+            return from + "-" + to + " " + rateMiB;
+        }
+    }
+}
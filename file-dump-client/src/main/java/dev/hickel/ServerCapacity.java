@@ -0,0 +1,78 @@
+package dev.hickel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+
+// What a server said it can take, read from its capacityPort, see Protocol.CAPACITY_VERSION. Files sent to it are
+// taken off locally until the next query, so one check doesn't hand it more than it has room for, as far as the
+// client can tell where they went.
+public class ServerCapacity {
+    private static final int TIMEOUT = 2000;
+    private static final Metrics.Histogram QUERY_TIME =
+            Metrics.histogram("filedump_capacity_query_seconds", "Time to ask a server for its capacity", Metrics.LATENCY);
+    private int freeSlots;
+    private final long[] freeBytes; // per path that can take a transfer, empty when space isn't limited
+    private final boolean spaceLimited;
+
+    private ServerCapacity(int freeSlots, long largestFile, long[] freeBytes) {
+        this.freeSlots = freeSlots;
+        this.spaceLimited = largestFile != Long.MAX_VALUE;
+        this.freeBytes = freeBytes;
+    }
+
+    public static ServerCapacity query(String address, int port) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address, port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int version = in.readInt();
+            if (version != Protocol.CAPACITY_VERSION) {
+                throw new IOException("Unknown capacity answer version: " + version);
+            }
+            int freeSlots = in.readInt();
+            long largestFile = in.readLong();
+            long[] freeBytes = new long[in.readInt()];
+            for (int i = 0; i < freeBytes.length; i++) {
+                in.readUTF();
+                freeBytes[i] = in.readLong();
+            }
+            return new ServerCapacity(freeSlots, largestFile, freeBytes);
+        } finally {
+            QUERY_TIME.since(start);
+        }
+    }
+
+    public synchronized boolean fits(long fileSize) {
+        return freeSlots > 0 && (!spaceLimited || largestFile() >= fileSize);
+    }
+
+    // Which path takes the file is up to the server's placementStrategy, so space is only taken off when a single
+    // path can hold it. Otherwise the answer stays as advertised until the next query and the server has the last word.
+    public synchronized void placed(long fileSize) {
+        freeSlots--;
+        if (!spaceLimited) { return; }
+        int only = -1;
+        for (int i = 0; i < freeBytes.length; i++) {
+            if (freeBytes[i] - 1 < fileSize) { continue; }
+            if (only >= 0) { return; }
+            only = i;
+        }
+        if (only >= 0) { freeBytes[only] -= fileSize; }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (freeSlots == Integer.MAX_VALUE ? "any" : String.valueOf(freeSlots)) + " slots free, largest file: "
+                + (spaceLimited ? largestFile() / 1048576 + " MiB" : "any");
+    }
+
+    private long largestFile() {
+        long largest = 0;
+        for (long bytes : freeBytes) { largest = Math.max(largest, bytes - 1); } // placement needs more than the file
+        return largest;
+    }
+}
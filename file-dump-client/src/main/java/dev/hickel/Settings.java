@@ -9,28 +9,53 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.Map;
 
 
 public class Settings {
     public static volatile List<String> serverAddresses = List.of("localhost");
     public static boolean separateThreadForReading = true;
     public static volatile List<Integer> serverPorts = List.of(9988);
+    public static volatile List<Integer> capacityPorts = List.of();
+    public static int metricsPort = 0;
     public static volatile List<Integer> maxTransfers = List.of(3);
+    public static volatile int rateLimit = 0;
+    public static volatile List<Integer> serverRateLimits = List.of();
+    public static volatile Map<String, Integer> nicRateLimits = Map.of();
+    public static volatile List<RateLimiter.Window> rateLimitSchedule = List.of();
     public static volatile int socketBufferSize = 32768;
     public static volatile int readQueueSize = 4;
+    public static volatile String readWaitStrategy = "auto";
+    public static volatile String sendWaitStrategy = "auto";
     public static volatile List<String> monitoredDirectories = List.of();
+    public static volatile List<String> directReadDirectories = List.of();
     public static volatile List<String> monitoredFileTypes = List.of();
     public static volatile int blockSize = 32768;
     public static volatile int chunkSize = 4194304;
     public static volatile int fileCheckInterval = 3;
+    public static volatile int fileSettleTime = 5;
+    public static volatile int rescanInterval = 60;
+    public static volatile String transferMode = "stream";
+    public static volatile int zeroCopyFrameSize = 1048576;
+    public static volatile int mmapWindowSize = 268435456;
+    public static boolean virtualThreads = false;
+    public static volatile long memoryBudget = 1073741824;
+    public static volatile int stripes = 1;
+    public static volatile long minStripeSize = 1073741824;
+    public static volatile boolean stripeAcrossAddresses = false;
+    public static volatile boolean resumeTransfers = true;
+    public static volatile boolean checksumTransfers = true;
+    public static volatile int protocolVersion = 2;
     public static boolean deleteAfterTransfer = true;
     private static volatile String lastCheckSum = "";
     private static final TypeReference<List<String>> STRING_REF = new TypeReference<>() { };
     private static final TypeReference<List<Integer>> INTEGER_REF = new TypeReference<>() { };
+    private static final TypeReference<Map<String, Integer>> LIMITS_REF = new TypeReference<>() { };
 
     public static void load() throws IOException {
         String config = System.getProperty("user.dir") + File.separator + "config.yaml";
@@ -48,17 +73,41 @@ public class Settings {
                 case "serverAddresses" -> serverAddresses = mapper.readValue(next.getValue().traverse(), STRING_REF);
                 case "separateThreadForReading" -> separateThreadForReading = next.getValue().asBoolean();
                 case "serverPorts" -> serverPorts = mapper.readValue(next.getValue().traverse(), INTEGER_REF);
+                case "capacityPorts" -> capacityPorts = mapper.readValue(next.getValue().traverse(), INTEGER_REF);
+                case "metricsPort" -> metricsPort = next.getValue().asInt();
                 case "maxTransfers" -> maxTransfers = mapper.readValue(next.getValue().traverse(), INTEGER_REF);
+                case "rateLimit" -> rateLimit = next.getValue().asInt();
+                case "serverRateLimits" -> serverRateLimits = mapper.readValue(next.getValue().traverse(), INTEGER_REF);
+                case "nicRateLimits" -> nicRateLimits = mapper.readValue(next.getValue().traverse(), LIMITS_REF);
+                case "rateLimitSchedule" -> rateLimitSchedule =
+                        RateLimiter.Window.parseAll(mapper.readValue(next.getValue().traverse(), STRING_REF));
                 case "socketBufferSize" -> socketBufferSize = next.getValue().asInt();
                 case "readQueueSize" -> readQueueSize = next.getValue().asInt();
+                case "readWaitStrategy" -> readWaitStrategy = next.getValue().asText();
+                case "sendWaitStrategy" -> sendWaitStrategy = next.getValue().asText();
                 case "monitoredDirectories" ->
                         monitoredDirectories = mapper.readValue(next.getValue().traverse(), STRING_REF);
+                case "directReadDirectories" ->
+                        directReadDirectories = mapper.readValue(next.getValue().traverse(), STRING_REF);
                 case "monitoredFileTypes" ->
                         monitoredFileTypes = mapper.readValue(next.getValue().traverse(), STRING_REF);
                 case "blockSize" -> blockSize = next.getValue().asInt();
                 case "chunkSize" -> chunkSize = next.getValue().asInt();
                 case "fileCheckInterval" -> fileCheckInterval = next.getValue().asInt();
+                case "fileSettleTime" -> fileSettleTime = next.getValue().asInt();
+                case "rescanInterval" -> rescanInterval = next.getValue().asInt();
                 case "deleteAfterTransfer" -> deleteAfterTransfer = next.getValue().asBoolean();
+                case "transferMode" -> transferMode = next.getValue().asText();
+                case "zeroCopyFrameSize" -> zeroCopyFrameSize = next.getValue().asInt();
+                case "mmapWindowSize" -> mmapWindowSize = next.getValue().asInt();
+                case "virtualThreads" -> virtualThreads = next.getValue().asBoolean();
+                case "memoryBudget" -> memoryBudget = (long) next.getValue().asInt() * 1048576;
+                case "stripes" -> stripes = next.getValue().asInt();
+                case "minStripeSize" -> minStripeSize = (long) next.getValue().asInt() * 1048576;
+                case "stripeAcrossAddresses" -> stripeAcrossAddresses = next.getValue().asBoolean();
+                case "resumeTransfers" -> resumeTransfers = next.getValue().asBoolean();
+                case "checksumTransfers" -> checksumTransfers = next.getValue().asBoolean();
+                case "protocolVersion" -> protocolVersion = next.getValue().asInt();
                 default -> System.out.println("Unrecognized field name in config");
             }
         }
@@ -70,15 +119,37 @@ public class Settings {
         sb.append("\n  serverAddresses: ").append(serverAddresses);
         sb.append("\n  separateThreadForReading: ").append(separateThreadForReading);
         sb.append("\n  serverPorts: ").append(serverPorts);
+        sb.append("\n  capacityPorts: ").append(capacityPorts);
+        sb.append("\n  metricsPort: ").append(metricsPort);
         sb.append("\n  maxTransfers: ").append(maxTransfers);
+        sb.append("\n  rateLimit: ").append(rateLimit);
+        sb.append("\n  serverRateLimits: ").append(serverRateLimits);
+        sb.append("\n  nicRateLimits: ").append(nicRateLimits);
+        sb.append("\n  rateLimitSchedule: ").append(rateLimitSchedule);
         sb.append("\n  socketBufferSize: ").append(socketBufferSize);
         sb.append("\n  readQueueSize: ").append(readQueueSize);
+        sb.append("\n  readWaitStrategy: ").append(readWaitStrategy);
+        sb.append("\n  sendWaitStrategy: ").append(sendWaitStrategy);
         sb.append("\n  monitoredDirectories: ").append(monitoredDirectories);
+        sb.append("\n  directReadDirectories: ").append(directReadDirectories);
         sb.append("\n  monitoredFileTypes: ").append(monitoredFileTypes);
         sb.append("\n  blockSize: ").append(blockSize);
         sb.append("\n  chunkSize: ").append(chunkSize);
         sb.append("\n  fileCheckInterval: ").append(fileCheckInterval);
+        sb.append("\n  fileSettleTime: ").append(fileSettleTime);
+        sb.append("\n  rescanInterval: ").append(rescanInterval);
         sb.append("\n  deleteAfterTransfer: ").append(deleteAfterTransfer);
+        sb.append("\n  transferMode: ").append(transferMode);
+        sb.append("\n  zeroCopyFrameSize: ").append(zeroCopyFrameSize);
+        sb.append("\n  mmapWindowSize: ").append(mmapWindowSize);
+        sb.append("\n  virtualThreads: ").append(virtualThreads);
+        sb.append("\n  memoryBudget: ").append(memoryBudget / 1048576).append(" MiB");
+        sb.append("\n  stripes: ").append(stripes);
+        sb.append("\n  minStripeSize: ").append(minStripeSize);
+        sb.append("\n  stripeAcrossAddresses: ").append(stripeAcrossAddresses);
+        sb.append("\n  resumeTransfers: ").append(resumeTransfers);
+        sb.append("\n  checksumTransfers: ").append(checksumTransfers);
+        sb.append("\n  protocolVersion: ").append(protocolVersion);
         sb.append("\n");
         return sb.toString();
     }
@@ -103,16 +174,12 @@ public class Settings {
     }
 
 
-    private static long secToNanos(double sec) {
-        return (long) (sec * 1000000000);
-    }
-
-    public static long calcRateLimit(long startNanos, long totalTransferred, int rateMiB) {
-        double rateBytesPerSec = (double) rateMiB * 1024 * 1024;
-        double elapsedTimeSec = (System.nanoTime() - startNanos) / 1_000_000_000.0;
-        double expectedBytesTransferred = elapsedTimeSec * rateBytesPerSec;
-        long sleepTimeNanos = secToNanos((expectedBytesTransferred - totalTransferred) / rateBytesPerSec);
-        return Math.max(0, sleepTimeNanos);
+    // CPU time the calling thread spent since startCpuNanos, per GiB transferred, -1 if not measurable (virtual threads)
+    public static long cpuMsPerGiB(long startCpuNanos, long bytes) {
+        long nowCpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        if (startCpuNanos < 0 || nowCpuNanos < 0) { return -1; }
+        long cpuNanos = nowCpuNanos - startCpuNanos;
+        return Math.round(cpuNanos / 1_000_000.0 / Math.max(bytes / (1024.0 * 1024.0 * 1024.0), 1.0 / 1024));
     }
 
 }
@@ -0,0 +1,221 @@
+package dev.hickel;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+
+// Splits one file into byte ranges sent over parallel connections, each with the zero copy range sender. Stripe 0
+// makes the reservation, the others join it by name once the server accepted the stripe extension. Falls back
+// to a single stream on stripe 0's connection when the server doesn't accept stripes.
+public class StripedFileSender implements Runnable {
+    private static final long STRIPE_ALIGNMENT = 1048576;
+    private final String fileName;
+    private final long fileSize;
+    private final File file;
+    private final int frameSize;
+    private final List<String> addresses;
+    private final List<Integer> ports;
+    private final SocketChannel socketChannel;
+    private final RateLimiter limiter;
+
+    // addresses/ports hold the destination of every stripe, stripe k > 0 holds the slot fileName#stripe<k>
+    public StripedFileSender(File file, List<String> addresses, List<Integer> ports) throws IOException {
+        fileSize = file.length();
+        fileName = file.getName();
+        this.file = file;
+        this.addresses = addresses;
+        this.ports = ports;
+        frameSize = Settings.zeroCopyFrameSize;
+        socketChannel = openChannel(addresses.get(0), ports.get(0));
+        limiter = RateLimiter.of(socketChannel.socket(), addresses.get(0), ports.get(0));
+    }
+
+    public static String slotName(String fileName, int stripe) {
+        return fileName + "#stripe" + stripe;
+    }
+
+    @Override
+    public void run() {
+        String host = socketChannel.socket().getInetAddress().getHostAddress();
+        var startTime = System.currentTimeMillis();
+        try (DataOutputStream socketOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+             DataInputStream socketIn = new DataInputStream(socketChannel.socket().getInputStream());
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            // Send file info
+            socketOut.writeUTF(fileName);
+            socketOut.writeLong(fileSize);
+            socketOut.flush();
+
+            int reply = socketIn.readUnsignedByte();
+            if (reply == Protocol.REJECTED) {
+                Main.activeTransfers.rejected(fileName);
+                System.out.println("No space for, file already exists, or all paths in use: " + fileName
+                        + " will retry in: " + Settings.fileCheckInterval + " Seconds"
+                        + " | Host: " + host);
+                return;
+            }
+
+            int count = addresses.size();
+            long stripeLength = (fileSize / count + STRIPE_ALIGNMENT - 1) / STRIPE_ALIGNMENT * STRIPE_ALIGNMENT;
+            boolean striped = false;
+            Checksum checksum = null;
+            if (reply == Protocol.ACCEPTED_EXTENDED) {
+                Protocol.writeExtension(socketOut, requestedFlags(), stripeFields(0, count, stripeLength));
+                int accepted = socketIn.readInt();
+                Protocol.readBlock(socketIn);
+                striped = (accepted & Protocol.FLAG_STRIPE) != 0;
+                if ((accepted & Protocol.FLAG_CHECKSUM) != 0) { checksum = new Checksum(); }
+            }
+
+            boolean success;
+            if (!striped) {
+                System.out.println("Server does not accept stripes, sending as one stream: " + fileName
+                        + " | Host: " + host);
+                releaseStripeSlots();
+                ZeroCopyFileSender.sendRange(socketChannel, fileChannel, 0, fileSize, frameSize, checksum, false, limiter);
+                new FrameOutput(socketOut, false, frameSize).writeEnd(checksum);
+                success = socketIn.readBoolean();
+                if (success) { Main.activeTransfers.finished(fileName, fileSize); }
+            } else {
+                System.out.println("Started striped transfer of file: " + fileName + " | Stripes: " + count
+                        + " | Host: " + host);
+                // The server replies to every stripe once all are committed, so each stripe only starts waiting
+                // on its reply after all stripes are sent, keeping the wait inside the socket timeout
+                boolean[] results = new boolean[count];
+                Thread[] threads = new Thread[count];
+                CountDownLatch allSent = new CountDownLatch(count);
+                for (int i = 1; i < count; i++) {
+                    final int stripe = i;
+                    threads[i] = VirtualThreads.start(
+                            () -> results[stripe] = sendStripe(stripe, count, stripeLength, fileChannel, allSent));
+                }
+                try {
+                    ZeroCopyFileSender.sendRange(socketChannel, fileChannel, 0, stripeLength(0, stripeLength), frameSize,
+                                                 checksum, false, limiter);
+                    new FrameOutput(socketOut, false, frameSize).writeEnd(checksum);
+                } finally {
+                    allSent.countDown();
+                }
+                allSent.await();
+                success = socketIn.readBoolean();
+                if (success) { Main.activeTransfers.finished(fileName, stripeLength(0, stripeLength)); }
+                for (int i = 1; i < count; i++) {
+                    threads[i].join();
+                    success &= results[i];
+                }
+            }
+
+            if (success) {
+                long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+                System.out.println("Finished transfer for file: " + fileName + " | Host: " + host
+                        + "\tSpeed: " + Math.round((double) fileSize / 1048576 / seconds) + " MiBs");
+            } else {
+                System.out.println("Error during finalization of file transfer");
+                throw new IllegalStateException("Server responded to end of transfer as failed | Host: " + host);
+            }
+            if (Settings.deleteAfterTransfer) {
+                Files.delete(file.toPath());
+                System.out.println("Deleted file: " + file);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Error in file transfer, most likely connection was lost. | Host: " + host);
+            e.printStackTrace();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            releaseStripeSlots();
+            Main.activeTransfers.remove(fileName);
+            try { socketChannel.close(); } catch (IOException e) {
+                System.out.println("Error closing socket | Host: " + host);
+            }
+        }
+    }
+
+    private boolean sendStripe(int stripe, int count, long stripeLength, FileChannel fileChannel,
+            CountDownLatch allSent) {
+        String host = addresses.get(stripe);
+        boolean sent = false;
+        try (SocketChannel channel = openChannel(host, ports.get(stripe));
+             DataOutputStream socketOut = new DataOutputStream(channel.socket().getOutputStream());
+             DataInputStream socketIn = new DataInputStream(channel.socket().getInputStream())) {
+
+            socketOut.writeUTF(Protocol.STRIPE_PREFIX + stripe + ":" + fileName);
+            socketOut.writeLong(fileSize);
+            socketOut.flush();
+            if (socketIn.readUnsignedByte() != Protocol.ACCEPTED_EXTENDED) {
+                System.out.println("Stripe " + stripe + " rejected, stripe addresses must reach the same server"
+                        + " | Host: " + host);
+                return false;
+            }
+            Protocol.writeExtension(socketOut, requestedFlags(), stripeFields(stripe, count, stripeLength));
+            int accepted = socketIn.readInt();
+            Protocol.readBlock(socketIn);
+            if ((accepted & Protocol.FLAG_STRIPE) == 0) { return false; }
+            Checksum checksum = (accepted & Protocol.FLAG_CHECKSUM) != 0 ? new Checksum() : null;
+
+            ZeroCopyFileSender.sendRange(channel, fileChannel, stripeOffset(stripe, stripeLength),
+                                         stripeLength(stripe, stripeLength), frameSize, checksum, false,
+                                         RateLimiter.of(channel.socket(), host, ports.get(stripe)));
+            new FrameOutput(socketOut, false, frameSize).writeEnd(checksum);
+            sent = true;
+            allSent.countDown();
+            allSent.await();
+            boolean success = socketIn.readBoolean();
+            if (success) { Main.activeTransfers.finished(slotName(fileName, stripe), stripeLength(stripe, stripeLength)); }
+            return success;
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Error in stripe " + stripe + " of: " + fileName + " | Host: " + host);
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (!sent) { allSent.countDown(); }
+            Main.activeTransfers.remove(slotName(fileName, stripe));
+        }
+    }
+
+    // Every stripe is checked on its own, the server verifies each range before the group commits. Stripes keep
+    // v1 framing, their frames are already zeroCopyFrameSize and are never flushed one by one
+    private static int requestedFlags() {
+        return Protocol.FLAG_STRIPE | (Settings.checksumTransfers ? Protocol.FLAG_CHECKSUM : 0);
+    }
+
+    private ByteArrayOutputStream stripeFields(int stripe, int count, long stripeLength) throws IOException {
+        ByteArrayOutputStream fields = new ByteArrayOutputStream(24);
+        DataOutputStream out = new DataOutputStream(fields);
+        out.writeInt(stripe);
+        out.writeInt(count);
+        out.writeLong(stripeOffset(stripe, stripeLength));
+        out.writeLong(stripeLength(stripe, stripeLength));
+        return fields;
+    }
+
+    private long stripeOffset(int stripe, long stripeLength) {
+        return Math.min(stripe * stripeLength, fileSize);
+    }
+
+    private long stripeLength(int stripe, long stripeLength) {
+        return Math.min(stripeLength, fileSize - stripeOffset(stripe, stripeLength));
+    }
+
+    private void releaseStripeSlots() {
+        for (int i = 1; i < addresses.size(); i++) {
+            Main.activeTransfers.remove(slotName(fileName, i));
+        }
+    }
+
+    private static SocketChannel openChannel(String address, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+        channel.socket().setSoTimeout(120_000);
+        channel.socket().setTrafficClass(24);
+        if (Settings.socketBufferSize > 0) { channel.socket().setSendBufferSize(Settings.socketBufferSize); }
+        return channel;
+    }
+}
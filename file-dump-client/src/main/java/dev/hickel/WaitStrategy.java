@@ -0,0 +1,91 @@
+package dev.hickel;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+
+// How one side of a CircularBufferQueue waits on the other. idle is called each time the ring isn't ready, with the
+// number of calls so far in this wait, signal is called by the other side after it moves its sequence.
+//   spin  - never gives up the core, lowest latency, for dedicated machines
+//   yield - spins briefly then yields to other threads
+//   park  - spins, yields, then parks for a doubling time up to 1ms, cheap on idle transfers
+//   block - parks until signaled, required to free the carrier with virtual threads
+//   auto  - block with virtual threads, park otherwise
+public abstract class WaitStrategy {
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 200;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+
+    public abstract void idle(int round);
+
+    public void signal() { }
+
+    public static WaitStrategy of(String name) {
+        return switch (name) {
+            case "spin" -> new Spin();
+            case "yield" -> new Yield();
+            case "park" -> new ParkBackoff();
+            case "block" -> new Block();
+            case "auto" -> VirtualThreads.enabled() ? new Block() : new ParkBackoff();
+            default -> {
+                System.out.println("Unknown wait strategy: " + name + ", using auto");
+                yield of("auto");
+            }
+        };
+    }
+
+    private static class Spin extends WaitStrategy {
+        @Override
+        public void idle(int round) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static class Yield extends WaitStrategy {
+        @Override
+        public void idle(int round) {
+            if (round < SPIN_ROUNDS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static class ParkBackoff extends WaitStrategy {
+        @Override
+        public void idle(int round) {
+            if (round < SPIN_ROUNDS) {
+                Thread.onSpinWait();
+            } else if (round < YIELD_ROUNDS) {
+                Thread.yield();
+            } else {
+                int shift = Math.min(round - YIELD_ROUNDS, 10);
+                LockSupport.parkNanos(Math.min(1000L << shift, MAX_PARK_NANOS));
+            }
+        }
+    }
+
+    // The waiter publishes itself and returns once so the ring checks again before the first park, a signal in
+    // between then either sees the waiter and leaves a permit, or happened before that check saw its update.
+    private static class Block extends WaitStrategy {
+        private volatile Thread waiter;
+
+        @Override
+        public void idle(int round) {
+            Thread current = Thread.currentThread();
+            if (waiter != current) {
+                waiter = current;
+                return;
+            }
+            LockSupport.park(this);
+        }
+
+        @Override
+        public void signal() {
+            VarHandle.fullFence(); // the sequence store is only ordered, keep it from passing the read of waiter
+            Thread current = waiter;
+            if (current != null) { LockSupport.unpark(current); }
+        }
+    }
+}
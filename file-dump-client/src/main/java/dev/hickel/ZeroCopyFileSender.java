@@ -0,0 +1,151 @@
+package dev.hickel;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+
+// Sends the file with FileChannel.transferTo, letting the kernel move the data from the page cache to the socket
+// (sendfile on linux) instead of copying it through a heap buffer. Uses the same framing as the other senders,
+// just with frames of zeroCopyFrameSize.
+public class ZeroCopyFileSender implements Runnable {
+    private final String fileName;
+    private final long fileSize;
+    private final File file;
+    private final int frameSize;
+    private final SocketChannel socketChannel;
+    private final RateLimiter limiter;
+
+    public ZeroCopyFileSender(File file, String address, int port) throws IOException {
+        fileSize = file.length();
+        fileName = file.getName();
+        this.file = file;
+        frameSize = Settings.zeroCopyFrameSize;
+        socketChannel = SocketChannel.open(new InetSocketAddress(address, port));
+        socketChannel.socket().setSoTimeout(120_000);
+        socketChannel.socket().setTrafficClass(24);
+        if (Settings.socketBufferSize > 0) { socketChannel.socket().setSendBufferSize(Settings.socketBufferSize); }
+        limiter = RateLimiter.of(socketChannel.socket(), address, port);
+    }
+
+    @Override
+    public void run() {
+        String host = socketChannel.socket().getInetAddress().getHostAddress();
+        long startCpu = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        var startTime = System.currentTimeMillis();
+        try (DataOutputStream socketOut = new DataOutputStream(socketChannel.socket().getOutputStream());
+             DataInputStream socketIn = new DataInputStream(socketChannel.socket().getInputStream());
+             FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            // Send file info, resumes if the server holds a matching partial file
+            Handshake handshake = Handshake.perform(socketIn, socketOut, file, fileName, fileSize, frameSize);
+            if (!handshake.accepted) {
+                Main.activeTransfers.rejected(fileName);
+                System.out.println("No space for, file already exists, or all paths in use: " + fileName
+                        + " will retry in: " + Settings.fileCheckInterval + " Seconds"
+                        + " | Host: " + host);
+                return;
+            }
+
+            System.out.println("Started zero copy transfer of file: " + fileName + " | Host: " + host);
+
+            boolean v2 = handshake.frameSize > 0;
+            sendRange(socketChannel, fileChannel, handshake.startOffset, fileSize - handshake.startOffset,
+                      v2 ? handshake.frameSize : frameSize, handshake.checksum, v2, limiter);
+            handshake.frameOutput(socketOut, frameSize, limiter).writeEnd(handshake.checksum); // Send EOF
+
+            boolean success = socketIn.readBoolean(); // wait for servers last write, to avoid an exception on quick disconnect
+            if (success) {
+                Main.activeTransfers.finished(fileName, fileSize - handshake.startOffset);
+                long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+                System.out.println("Finished transfer for file: " + fileName + " | Host: " + host
+                        + "\tSpeed: " + Math.round((double) (fileSize - handshake.startOffset) / 1048576 / seconds) + " MiBs"
+                        + "\tCPU: " + Settings.cpuMsPerGiB(startCpu, fileSize - handshake.startOffset) + " ms/GiB"
+                        + handshake.checksumStats());
+            } else {
+                System.out.println("Error during finalization of file transfer");
+                Main.activeTransfers.remove(fileName);
+                throw new IllegalStateException("Server responded to end of transfer as failed | Host: " + host);
+            }
+            if (Settings.deleteAfterTransfer) {
+                Files.delete(file.toPath());
+                System.out.println("Deleted file: " + file);
+            }
+            Main.activeTransfers.remove(fileName);
+
+        } catch (IOException e) {
+            Main.activeTransfers.remove(fileName);
+            System.out.println("Error in file transfer, most likely connection was lost. | Host: " + host);
+            e.printStackTrace();
+        } catch (Exception e) {
+            Main.activeTransfers.remove(fileName);
+            e.printStackTrace();
+        } finally {
+            try { socketChannel.close(); } catch (IOException e) {
+                System.out.println("Error closing socket | Host: " + host);
+            }
+        }
+    }
+
+    // Sends length bytes from position as frames of frameSize, used by the striped sender as well. The data never
+    // enters the jvm, so a checksum reads each frame back into a direct buffer while it's still in the page cache
+    static void sendRange(SocketChannel socketChannel, FileChannel fileChannel, long position, long length,
+            int frameSize, Checksum checksum, boolean v2, RateLimiter limiter) throws IOException {
+        // The read back buffer comes from the arena, a heap buffer only if the budget is used up by queued transfers
+        ByteBuffer[] slab = checksum != null ? BufferArena.acquire(1, frameSize) : null;
+        ByteBuffer readBack = slab != null ? slab[0] : checksum != null ? ByteBuffer.allocate(frameSize) : null;
+        // Direct, a heap buffer would be copied into a temporary direct one by every write
+        ByteBuffer header = ByteBuffer.allocateDirect(5);
+        try {
+            sendFrames(socketChannel, fileChannel, position, length, frameSize, checksum, v2, header, readBack,
+                       limiter);
+        } finally {
+            if (slab != null) { BufferArena.release(slab); }
+        }
+    }
+
+    private static void sendFrames(SocketChannel socketChannel, FileChannel fileChannel, long position, long length,
+            int frameSize, Checksum checksum, boolean v2, ByteBuffer header, ByteBuffer readBack, RateLimiter limiter)
+            throws IOException {
+        long end = position + length;
+        while (position < end) {
+            int frame = (int) Math.min(frameSize, end - position);
+            limiter.acquire(frame);
+            writeFrameHeader(socketChannel, header, frame, v2);
+
+            // transferTo may send less than asked, loop until the whole frame is out
+            long sent = 0;
+            while (sent < frame) {
+                long n = fileChannel.transferTo(position + sent, frame - sent, socketChannel);
+                if (n <= 0 && position + sent >= fileChannel.size()) {
+                    throw new IOException("File truncated during transfer");
+                }
+                sent += n;
+            }
+            FrameOutput.SENT_BYTES.add(frame);
+            if (checksum != null) {
+                readBack.clear().limit(frame);
+                while (readBack.hasRemaining()) {
+                    if (fileChannel.read(readBack, position + readBack.position()) < 0) {
+                        throw new IOException("File truncated during transfer");
+                    }
+                }
+                checksum.update(readBack.flip());
+            }
+            position += frame;
+        }
+    }
+
+    static void writeFrameHeader(SocketChannel socketChannel, ByteBuffer header, int value, boolean v2)
+            throws IOException {
+        header.clear();
+        if (v2) { header.put((byte) Protocol.FRAME_DATA); }
+        header.putInt(value).flip();
+        while (header.hasRemaining()) { socketChannel.write(header); }
+    }
+}
@@ -0,0 +1,53 @@
+package dev.hickel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+
+class BufferArenaTest {
+    private final long budget = Settings.memoryBudget;
+
+    @AfterEach
+    void restoreBudget() {
+        Settings.memoryBudget = budget;
+    }
+
+    @Test
+    void alternatingSizesKeepBothPools() {
+        Settings.memoryBudget = 64 * 1048576;
+        ByteBuffer[] large = BufferArena.acquire(2, 524288);
+        BufferArena.release(large);
+        ByteBuffer[] small = BufferArena.acquire(2, 16384);
+        BufferArena.release(small);
+
+        for (int round = 0; round < 4; round++) {
+            ByteBuffer[] largeAgain = BufferArena.acquire(2, 524288);
+            ByteBuffer[] smallAgain = BufferArena.acquire(2, 16384);
+            assertSame(large[0], largeAgain[0]);
+            assertSame(large[1], largeAgain[1]);
+            assertSame(small[0], smallAgain[0]);
+            assertSame(small[1], smallAgain[1]);
+            BufferArena.release(largeAgain);
+            BufferArena.release(smallAgain);
+        }
+    }
+
+    @Test
+    void leastRecentSizeDroppedOverBudget() {
+        Settings.memoryBudget = 3 * 1048576;
+        ByteBuffer[] old = BufferArena.acquire(2, 1048576);
+        BufferArena.release(old);
+        // 2 MiB pooled plus 2 MiB out is over the budget, the old size goes
+        BufferArena.release(BufferArena.acquire(1, 2 * 1048576));
+
+        ByteBuffer[] fresh = BufferArena.acquire(1, 1048576);
+        assertNotSame(old[0], fresh[0]);
+        assertNotSame(old[1], fresh[0]);
+        BufferArena.release(fresh);
+    }
+}
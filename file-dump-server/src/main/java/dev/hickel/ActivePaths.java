@@ -2,143 +2,418 @@ package dev.hickel;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
 
 
+// Places transfers on the output paths. Free space comes from a DiskStore per file system that a background
+// thread refreshes every freeSpaceRefresh seconds, placing a file only reserves bytes on it with a compare and set,
+// so the accept path takes no lock and makes no file system calls beyond looking for a partial file to resume.
+// Files to delete for space come from a DeletionIndex rebuilt by the same thread.
 public class ActivePaths {
-    private List<Path> pathList = new ArrayList<>();
-    private final HashMap<String, Path> activeTransfers = new HashMap<>();
-    private List<Path> badPathList;
+    private static final Transfer PLACING = new Transfer(null, null, null, 0);
+    private static final Metrics.Counter REJECTED_STRIPE = rejected("stripe");
+    private static final Metrics.Counter REJECTED_ACTIVE = rejected("active");
+    private static final Metrics.Counter REJECTED_NO_SPACE = rejected("no_space");
+    private static final Metrics.Counter REJECTED_EXISTS = rejected("exists");
+    private static final Metrics.Counter REJECTED_PREALLOCATE = rejected("preallocate");
+    private static final Metrics.Histogram PLACEMENT_TIME =
+            Metrics.histogram("filedump_placement_seconds", "Time to place a file, deletions for space included",
+                              Metrics.LATENCY);
 
+    private volatile List<OutputPath> pathList = List.of();
+    private final ConcurrentHashMap<Path, OutputPath> outputPaths = new ConcurrentHashMap<>(); // kept over reloads
+    private final ConcurrentHashMap<FileStore, DiskStore> stores = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Transfer> activeTransfers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StripeGroup> stripeGroups = new ConcurrentHashMap<>();
+    private final Object deletionLock = new Object();
+    private final DeletionIndex deletionIndex = new DeletionIndex();
+    private volatile List<Path> badPathList = List.of();
+    private volatile PlacementStrategy strategy = PlacementStrategy.of("most-free");
+    private String strategyName = "most-free"; // as configured, guarded by this
+
+    // A placed file and the bytes it holds reserved on its store until they show up as used on disk
+    private static class Transfer {
+        final OutputPath path;
+        final DiskStore store;
+        final Path tmpPath;
+        final long fileSize;
+        long reserved;                 // guarded by this
+        boolean released = false;     // guarded by this
+        volatile boolean preallocated = false;
+        volatile boolean striped = false;
+
+        Transfer(OutputPath path, DiskStore store, Path tmpPath, long fileSize) {
+            this.path = path;
+            this.store = store;
+            this.tmpPath = tmpPath;
+            this.fileSize = fileSize;
+        }
+    }
+
+    public ActivePaths() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1, Settings.freeSpaceRefresh) * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                refresh();
+            }
+        }, "free-space");
+        Metrics.gauges("filedump_path_free_bytes", "Free space of each output path less space promised to transfers",
+                       "path", this::pathFree);
+        Metrics.gauges("filedump_disk_reserved_bytes", "Space promised to transfers not written yet", "disk",
+                       () -> perStore(DiskStore::reserved));
+        Metrics.gauges("filedump_disk_write_backlog_bytes", "Bytes received for a disk not written yet", "disk",
+                       () -> perStore(store -> store.writes.backlog()));
+        Metrics.gauges("filedump_disk_write_queue_depth", "Transfers waiting for a turn at writing to a disk", "disk",
+                       () -> perStore(store -> store.writes.depth()));
+        Metrics.gauges("filedump_disk_writers", "Transfers writing to a disk", "disk",
+                       () -> perStore(store -> store.writes.writing()));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // pathList is only replaced while holding the lock refresh holds, so a reload, a path dropped after a failed
+    // transfer and paths fixed by checkBadPaths can't undo each other
     public synchronized void replaceList(List<Path> pathList) {
-        this.pathList.clear();
         var badPaths = pathList.stream().filter(p -> !Files.isWritable(p)).toList();
         if (!badPaths.isEmpty()) {
             System.out.println("Improper permissions to write to the following directories: " + badPaths);
             System.out.println("Please fix permissions and directories will be added back on next transfer.");
-            if (badPathList == null) {
-                badPathList = new ArrayList<>(badPaths.size());
-            } else {
-                badPathList.clear();
-            }
-            badPathList.addAll(badPaths);
         }
-        this.pathList.addAll(pathList);
+        badPathList = badPaths;
+        this.pathList = pathList.stream()
+                .filter(p -> !badPaths.contains(p))
+                .map(this::outputPath)
+                .filter(Objects::nonNull)
+                .toList();
+        refresh();
+    }
+
+    private OutputPath outputPath(Path path) {
+        OutputPath existing = outputPaths.get(path);
+        if (existing != null) { return existing; }
+        try {
+            return outputPaths.computeIfAbsent(path, p -> new OutputPath(p, store(p)));
+        } catch (UncheckedIOException e) {
+            System.out.println("Removing path: " + path + "\tReason: Failed to read path");
+            return null;
+        }
     }
 
-    public synchronized Path getNewPath(String fileName, long fileSize) {
-        if (badPathList != null && !badPathList.isEmpty()) { checkBadPaths(); }
+    private DiskStore store(Path path) {
+        try {
+            FileStore fileStore = Files.getFileStore(path);
+            DiskStore store = stores.get(fileStore);
+            return store != null ? store : stores.computeIfAbsent(fileStore, fs -> {
+                try {
+                    return new DiskStore(fs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        Path pathMostFree = getPathMostFree(fileSize);
-        if (pathMostFree == null && Settings.deleteForSpace) {
+    // Everything placement needs from the disk, run in the background. Reservations are worked out before the free
+    // space is read, so bytes landing in between are counted twice rather than not at all
+    synchronized void refresh() {
+        if (!badPathList.isEmpty()) { checkBadPaths(); }
+        if (!strategyName.equals(Settings.placementStrategy)) {
+            strategyName = Settings.placementStrategy;
+            strategy = PlacementStrategy.of(strategyName);
+        }
+
+        Map<Transfer, Long> outstanding = new HashMap<>();
+        for (Transfer transfer : activeTransfers.values()) {
+            if (transfer == PLACING) { continue; }
+            outstanding.put(transfer, outstanding(transfer));
+        }
+        for (OutputPath path : pathList) {
             try {
-                deleteForFreeSpace(fileSize);
-            } catch (IOException | UnsupportedOperationException e) {
-                System.out.println("Error deleting file(s) for more space");
-                e.printStackTrace();
+                DiskStore store = store(path.path);
+                if (path.store() != store) { path.setStore(store); } // mounted or unmounted since
+                path.setAvailable(path.path.toFile().isDirectory());
+            } catch (UncheckedIOException e) {
+                if (path.isAvailable()) { System.out.println("Failed to read path: " + path + ", unused until readable"); }
+                path.setAvailable(false);
             }
-            pathMostFree = getPathMostFree(fileSize);
         }
-        if (pathMostFree != null) {
-            Path freeFile = pathMostFree.resolve(fileName);
-            if (!Settings.overWriteExisting && freeFile.toFile().exists()) {
-                return null;
+        for (DiskStore store : stores.values()) {
+            try { store.refresh(); } catch (IOException e) {
+                System.out.println("Error reading free space of: " + store);
             }
-            activeTransfers.put(fileName, pathMostFree);
-            return Path.of(freeFile + ".tmp");
         }
-        return null;
+        deletionIndex.rebuild(this::store);
+        outstanding.forEach((transfer, bytes) -> {
+            synchronized (transfer) {
+                if (transfer.released) { return; }
+                transfer.store.release(transfer.reserved - bytes);
+                transfer.reserved = bytes;
+            }
+        });
+    }
+
+    // Preallocated files are used space as soon as they exist. Others hold what hasn't been written yet, except
+    // stripes, which write out of order and extend the file long before it holds all of its data
+    private static long outstanding(Transfer transfer) {
+        if (transfer.preallocated) { return 0; }
+        if (transfer.striped) { return transfer.fileSize; }
+        return Math.max(0, transfer.fileSize - transfer.tmpPath.toFile().length());
     }
 
     private void checkBadPaths() {
         var fixedPaths = badPathList.stream().filter(Files::isWritable).toList();
         if (!fixedPaths.isEmpty()) {
-            pathList.addAll(fixedPaths);
+            List<OutputPath> paths = new ArrayList<>(pathList);
+            fixedPaths.stream().map(this::outputPath).filter(Objects::nonNull).forEach(paths::add);
+            pathList = List.copyOf(paths);
             System.out.println("Added fixed paths: " + fixedPaths);
-            fixedPaths.forEach(badPathList::remove);
-            if (!badPathList.isEmpty()) {
-                System.out.println("Improper permissions to write to the following directories: " + badPathList);
+            List<Path> stillBad = new ArrayList<>(badPathList);
+            stillBad.removeAll(fixedPaths);
+            badPathList = stillBad;
+            if (!stillBad.isEmpty()) {
+                System.out.println("Improper permissions to write to the following directories: " + stillBad);
                 System.out.println("Please fix permissions and directories will be added back on next transfer.");
             }
         }
     }
 
-    public synchronized Path getExistingPath(String fileName) {
-        return activeTransfers.get(fileName);
+    private static Metrics.Counter rejected(String reason) {
+        return Metrics.counter("filedump_placement_rejections_total", "Files turned away by placement, by reason",
+                               "reason=\"" + reason + "\"");
     }
 
-    public synchronized void removeActiveTransfer(String fileName) {
-        activeTransfers.remove(fileName);
+    public Path getNewPath(String fileName, long fileSize) {
+        long start = System.nanoTime();
+        Path path = placeNew(fileName, fileSize);
+        PLACEMENT_TIME.since(start);
+        return path;
     }
 
-    public synchronized void removePathOfTransfer(String fileName) {
-        pathList.remove(activeTransfers.get(fileName));
-    }
-
-    final Predicate<Path> eligible = path -> path != null && path.toFile().isDirectory()
-            && (activeTransfers.values().stream().noneMatch(path::startsWith)
-            || !Settings.oneTransferPerDirectory);
-
-    private Path getPathMostFree(long fileSize) {
-        final List<Path> badPaths = new ArrayList<>(1);
-
-        Path pathMostFree = pathList.stream()
-                .filter(eligible)
-                .map(path -> {
-                    try {
-                        return new AbstractMap.SimpleImmutableEntry<>(path, Files.getFileStore(path).getUsableSpace());
-                    } catch (IOException e) {
-                        System.out.println("Removing path: " + path + "\tReason: Failed to read path");
-                        badPaths.add(path);
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .max(Map.Entry.comparingByValue())
-                .filter(entry -> entry.getValue() > fileSize)
-                .map(Map.Entry::getKey)
-                .orElse(null);
+    private Path placeNew(String fileName, long fileSize) {
+        // receiver doesn't support stripes
+        if (fileName.startsWith(Protocol.STRIPE_PREFIX)) {
+            REJECTED_STRIPE.inc();
+            return null;
+        }
+        // already being received
+        if (activeTransfers.putIfAbsent(fileName, PLACING) != null) {
+            REJECTED_ACTIVE.inc();
+            return null;
+        }
 
-        if (!badPaths.isEmpty()) {
-            pathList.removeAll(badPaths);
+        // Place the file where a partial copy was left so the transfer can resume from it
+        Transfer transfer = Settings.resumePartialFiles ? placePartial(fileName, fileSize) : null;
+        if (transfer == null) { transfer = place(fileName, fileSize); }
+        if (transfer == null && Settings.deleteForSpace) {
+            // Deleting is slow and only one placement should do it, the others see the space once it's done
+            synchronized (deletionLock) {
+                transfer = place(fileName, fileSize);
+                if (transfer == null && deleteForFreeSpace(fileSize)) { transfer = place(fileName, fileSize); }
+            }
+        }
+        if (transfer == null) {
+            REJECTED_NO_SPACE.inc();
+            activeTransfers.remove(fileName, PLACING);
+            return null;
         }
-        return pathMostFree;
+        if (!Settings.overWriteExisting && transfer.path.path.resolve(fileName).toFile().exists()) {
+            REJECTED_EXISTS.inc();
+            release(transfer);
+            activeTransfers.remove(fileName, PLACING);
+            return null;
+        }
+        activeTransfers.put(fileName, transfer);
+        return reserve(fileName, transfer);
     }
 
-    // Easier to read and trust than a lambda doing the same
-    public Path deleteForFreeSpace(long fileSize) throws IOException {
-        for (var path : Settings.deletionDirectories) {
-            try {
-                if (!eligible.test(path)) { continue; }
-                FileStore fileStore = Files.getFileStore(path);
-
-                for (var file : path.toFile().listFiles()) {
-                    if (!file.isFile()) { continue; }
-                    if (Settings.deletedFileTypes.contains(getExt(file)) && file.length() >= Settings.deletionThreshHold) {
-                        try {
-                            long size = file.length();
-                            Files.delete(file.toPath());
-                            System.out.println("Deleted file: " + path + File.separator + file.getName()
-                                    + "\tSize: " + Math.round((double) size / 1048576) + " MiB");
-                        } catch (IOException e) {
-                            System.out.println("Error deleting file: " + file.getName());
-                        }
-                    }
-                    if (fileStore.getUsableSpace() > fileSize) { return path; }
-                }
-            } catch (UnsupportedOperationException e) {
-                System.out.println("Error in permissions accessing path:" + path);
-            }
+    private Transfer placePartial(String fileName, long fileSize) {
+        for (var path : pathList) {
+            if (!path.canTake()) { continue; }
+            File partial = path.path.resolve(fileName + ".tmp").toFile();
+            if (!partial.isFile() || partial.length() == 0 || partial.length() > fileSize) { continue; }
+            if (!Settings.overWriteExisting && path.path.resolve(fileName).toFile().exists()) { continue; }
+            Transfer transfer = claim(path, partial.toPath(), fileSize, fileSize - partial.length());
+            if (transfer != null) { return transfer; }
         }
         return null;
     }
 
-    private String getExt(File file) {
-        return file.getName().substring(file.getName().lastIndexOf('.') + 1);
+    private Transfer place(String fileName, long fileSize) {
+        List<OutputPath> candidates = new ArrayList<>();
+        for (var path : pathList) {
+            if (path.canTake() && path.store().free() > fileSize) { candidates.add(path); }
+        }
+        for (var path : strategy.order(candidates)) {
+            Transfer transfer = claim(path, path.path.resolve(fileName + ".tmp"), fileSize, fileSize);
+            if (transfer != null) { return transfer; }
+        }
+        return null;
     }
-}
 
+    // Takes the directory and reserves the bytes, or neither if another placement got there first
+    private static Transfer claim(OutputPath path, Path tmpPath, long fileSize, long bytes) {
+        if (!path.claim()) { return null; }
+        DiskStore store = path.store();
+        if (!store.tryReserve(bytes)) {
+            path.release();
+            return null;
+        }
+        Transfer transfer = new Transfer(path, store, tmpPath, fileSize);
+        transfer.reserved = bytes;
+        return transfer;
+    }
+
+    // Preallocates the file so it is laid out in one piece and the space shows as used right away, otherwise the
+    // rest of the file stays reserved until it is written. A disk that refuses the allocation rejects the transfer
+    // now rather than near the end.
+    private Path reserve(String fileName, Transfer transfer) {
+        if (transfer.fileSize == 0) { return transfer.tmpPath; }
+        try {
+            if (Settings.preallocateFiles && Preallocation.allocate(transfer.tmpPath, transfer.fileSize)) {
+                transfer.preallocated = true;
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to preallocate: " + transfer.tmpPath + "\tReason: " + e.getMessage());
+            REJECTED_PREALLOCATE.inc();
+            removeActiveTransfer(fileName);
+            return null;
+        }
+        return transfer.tmpPath;
+    }
+
+    private static void release(Transfer transfer) {
+        synchronized (transfer) {
+            if (transfer.released) { return; }
+            transfer.released = true;
+            transfer.store.release(transfer.reserved);
+            transfer.reserved = 0;
+        }
+        transfer.path.release();
+    }
+
+    public Path getExistingPath(String fileName) {
+        Transfer transfer = activeTransfers.get(fileName);
+        return transfer == null || transfer == PLACING ? null : transfer.path.path;
+    }
+
+    // Stripes of a file write to the store of stripe 0
+    public DiskStore storeOf(String fileName) {
+        Transfer transfer = activeTransfers.get(fileName);
+        return transfer == null || transfer == PLACING ? null : transfer.store;
+    }
+
+    public void removeActiveTransfer(String fileName) {
+        Transfer transfer = activeTransfers.get(fileName);
+        if (transfer == null || transfer == PLACING || !activeTransfers.remove(fileName, transfer)) { return; }
+        release(transfer);
+        releasePreallocation(transfer);
+    }
+
+    // A transfer that ended before writing anything leaves nothing to resume, and without resumePartialFiles an
+    // unfinished one won't be resumed either, don't let them hold the space. Finished ones are still to be renamed.
+    private static void releasePreallocation(Transfer transfer) {
+        long length = transfer.tmpPath.toFile().length();
+        if (transfer.preallocated && length == 0 || !Settings.resumePartialFiles && length < transfer.fileSize) {
+            try { Files.deleteIfExists(transfer.tmpPath); } catch (IOException ignored) { }
+        }
+    }
+
+    // A striped transfer holds the single reservation made for stripe 0 until the group finishes
+    public StripeGroup startStripes(String fileName, Path tmpPath, long fileSize, int count) {
+        Transfer transfer = activeTransfers.get(fileName);
+        if (transfer != null) { transfer.striped = true; }
+        StripeGroup group = new StripeGroup(fileName, tmpPath, fileSize, count);
+        stripeGroups.put(fileName, group);
+        return group;
+    }
+
+    public StripeGroup joinStripe(String fileName, int index) {
+        StripeGroup group = stripeGroups.get(fileName);
+        return group != null && group.join(index) ? group : null;
+    }
+
+    public void endStripes(String fileName) {
+        stripeGroups.remove(fileName);
+        removeActiveTransfer(fileName);
+    }
+
+    public synchronized void removePathOfTransfer(String fileName) {
+        Transfer transfer = activeTransfers.get(fileName);
+        if (transfer == null || transfer == PLACING) { return; }
+        pathList = pathList.stream().filter(path -> path != transfer.path).toList();
+    }
+
+    // Free bytes of every path that can take a transfer now, less what active transfers still need
+    public Map<Path, Long> freeSpace() {
+        Map<Path, Long> free = new LinkedHashMap<>();
+        for (var path : pathList) {
+            if (path.canTake()) { free.put(path.path, path.store().free()); }
+        }
+        return free;
+    }
+
+    private Map<Path, Long> pathFree() {
+        Map<Path, Long> free = new LinkedHashMap<>();
+        for (var path : pathList) { free.put(path.path, path.store().free()); }
+        return free;
+    }
+
+    private Map<String, Long> perStore(ToLongFunction<DiskStore> value) {
+        Map<String, Long> values = new TreeMap<>();
+        for (DiskStore store : stores.values()) { values.put(store.toString(), value.applyAsLong(store)); }
+        return values;
+    }
+
+    // Every disk seen so far, with its write queue
+    public Collection<DiskStore> stores() {
+        return stores.values();
+    }
+
+    // A deletion directory on a disk being written to is left alone with limitOneTransferPerDirectory
+    private boolean deletable(Path directory) {
+        if (!Settings.oneTransferPerDirectory) { return true; }
+        return activeTransfers.values().stream().noneMatch(t -> t != PLACING && directory.startsWith(t.path.path));
+    }
+
+    // Deletes the fewest bytes from the index that let an output path take the file, only the chosen files touch
+    // the disk. Returns false if no disk can be freed enough
+    private boolean deleteForFreeSpace(long fileSize) {
+        DiskStore best = null;
+        List<DeletionIndex.Candidate> bestFiles = null;
+        for (DiskStore store : pathList.stream().filter(OutputPath::canTake).map(OutputPath::store).distinct().toList()) {
+            var files = deletionIndex.select(store, fileSize + 1 - store.free(), this::deletable);
+            if (files != null && (bestFiles == null || DeletionIndex.size(files) < DeletionIndex.size(bestFiles))) {
+                best = store;
+                bestFiles = files;
+            }
+        }
+        if (best == null) { return false; }
+
+        for (var file : bestFiles) {
+            try {
+                Files.delete(file.file());
+                System.out.println("Deleted file: " + file.file()
+                        + "\tSize: " + Math.round((double) file.size() / 1048576) + " MiB");
+            } catch (IOException e) {
+                System.out.println("Error deleting file: " + file.file().getFileName());
+            }
+        }
+        deletionIndex.removed(best, bestFiles);
+        try { best.refresh(); } catch (IOException e) {
+            System.out.println("Error reading free space of: " + best);
+        }
+        return true;
+    }
+}
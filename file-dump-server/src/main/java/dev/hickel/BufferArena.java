@@ -0,0 +1,75 @@
+package dev.hickel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+
+
+// Direct buffers shared by every transfer, instead of each transfer allocating its own and relying on gc to free
+// them. Slabs are handed out as a set for one transfer and returned when it ends. memoryBudget caps the bytes out
+// at once, a transfer that doesn't fit is turned away until others finish.
+public class BufferArena {
+    // Slabs start on a page boundary so they can be used for O_DIRECT io
+    public static final int ALIGNMENT = 4096;
+    // Free slabs by size, least recently acquired size first. Several sizes are in use at once, so a size is only
+    // let go when the slabs held in total would go over memoryBudget, eg after a reload changed the sizes.
+    private static final LinkedHashMap<Integer, ArrayDeque<ByteBuffer>> freeSlabs =
+            new LinkedHashMap<>(8, 0.75f, true);
+    private static long inUse = 0;
+    private static long pooled = 0;
+    private static boolean warned = false;
+
+    // Returns null if the slabs don't fit in the budget
+    public static ByteBuffer[] acquire(int count, int slabSize) {
+        long bytes = (long) count * slabSize;
+        ByteBuffer[] slabs = new ByteBuffer[count];
+        synchronized (BufferArena.class) {
+            if (bytes > Settings.memoryBudget && !warned) {
+                warned = true;
+                System.out.println("memoryBudget is smaller than the buffers of a single transfer: "
+                        + bytes / 1048576 + " MiB, no transfers will start");
+            }
+            if (inUse + bytes > Settings.memoryBudget) { return null; }
+            inUse += bytes;
+            ArrayDeque<ByteBuffer> free = freeSlabs.computeIfAbsent(slabSize, size -> new ArrayDeque<>());
+            for (int i = 0; i < count && !free.isEmpty(); i++) {
+                slabs[i] = free.poll();
+                pooled -= slabSize;
+            }
+            trim(slabSize);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (slabs[i] == null) {
+                slabs[i] = ByteBuffer.allocateDirect(slabSize + ALIGNMENT).alignedSlice(ALIGNMENT).limit(slabSize).slice();
+            }
+            slabs[i].clear();
+        }
+        return slabs;
+    }
+
+    public static void release(ByteBuffer[] slabs) {
+        synchronized (BufferArena.class) {
+            for (var slab : slabs) {
+                freeSlabs.computeIfAbsent(slab.capacity(), size -> new ArrayDeque<>()).add(slab);
+                inUse -= slab.capacity();
+                pooled += slab.capacity();
+            }
+        }
+    }
+
+    // Drops whole sizes, least recently acquired first, until what is out and pooled fits the budget again
+    private static void trim(int keep) {
+        var sizes = freeSlabs.entrySet().iterator();
+        while (inUse + pooled > Settings.memoryBudget && sizes.hasNext()) {
+            var size = sizes.next();
+            if (size.getKey() == keep) { continue; }
+            pooled -= (long) size.getKey() * size.getValue().size();
+            sizes.remove();
+        }
+    }
+
+    public static synchronized long getInUse() {
+        return inUse;
+    }
+}
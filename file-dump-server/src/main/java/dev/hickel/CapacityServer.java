@@ -0,0 +1,83 @@
+package dev.hickel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Map;
+
+
+// Answers capacity queries on capacityPort so clients can tell whether a file would be accepted without opening a
+// transfer, see Protocol.CAPACITY_VERSION. Answers are reused for a second so many clients asking at once share
+// one.
+public class CapacityServer implements Runnable {
+    private static final long REUSE_MILLIS = 1000;
+    private final ActivePaths activePaths;
+    private byte[] answer;
+    private long answeredAt;
+
+    public CapacityServer(ActivePaths activePaths) {
+        this.activePaths = activePaths;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName(Settings.bindAddress), Settings.capacityPort));
+            System.out.println("Answering capacity queries on port: " + Settings.capacityPort);
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    socket.setSoTimeout(5000);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(answer());
+                    out.flush();
+                } catch (IOException e) {
+                    System.out.println("Error answering capacity query: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to open capacity port: " + Settings.capacityPort);
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] answer() throws IOException {
+        if (answer != null && System.currentTimeMillis() - answeredAt < REUSE_MILLIS) { return answer; }
+
+        Map<Path, Long> free = activePaths.freeSpace();
+        long largest = Settings.deleteForSpace
+                ? Long.MAX_VALUE // space can be made when a file arrives
+                : free.values().stream().mapToLong(Long::longValue).max().orElse(0) - 1; // placement needs more than the file
+        int slots = Settings.oneTransferPerDirectory ? free.size() : Integer.MAX_VALUE;
+        long slabBytes = (long) slabsPerTransfer() * Settings.blockBufferSize;
+        if (slabBytes > 0) {
+            slots = (int) Math.min(slots, Math.max(0, Settings.memoryBudget - BufferArena.getInUse()) / slabBytes);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Protocol.CAPACITY_VERSION);
+        out.writeInt(slots);
+        out.writeLong(Math.max(0, largest));
+        out.writeInt(free.size());
+        for (var entry : free.entrySet()) {
+            out.writeUTF(entry.getKey().toString());
+            out.writeLong(entry.getValue());
+        }
+        answer = bytes.toByteArray();
+        answeredAt = System.currentTimeMillis();
+        return answer;
+    }
+
+    // Receive buffers each kind of receiver takes from the arena
+    private static int slabsPerTransfer() {
+        if (Settings.nioServer) { return Settings.queueSize; }
+        if (Settings.transferMode.equals("zerocopy")) { return 1; }
+        return Settings.separateThreadForWriting ? CircularBufferQueue.ringSize(Settings.queueSize) : 0;
+    }
+}
@@ -0,0 +1,33 @@
+package dev.hickel;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+
+// CRC32C of the bytes sent over one connection, computed on the buffers already passing through the transfer so
+// there is no extra pass over the file. Time spent is tracked to report the overhead with the transfer stats.
+public class Checksum {
+    private final CRC32C crc = new CRC32C();
+    private long nanos = 0;
+
+    public void update(byte[] buffer, int offset, int length) {
+        long start = System.nanoTime();
+        crc.update(buffer, offset, length);
+        nanos += System.nanoTime() - start;
+    }
+
+    // Consumes the remaining bytes of the buffer, callers rewind it if they still need them
+    public void update(ByteBuffer buffer) {
+        long start = System.nanoTime();
+        crc.update(buffer);
+        nanos += System.nanoTime() - start;
+    }
+
+    public long getValue() {
+        return crc.getValue();
+    }
+
+    public long getMillis() {
+        return nanos / 1_000_000;
+    }
+}
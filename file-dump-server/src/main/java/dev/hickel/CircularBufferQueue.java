@@ -1,103 +1,230 @@
 package dev.hickel;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.LockSupport;
 
 
+// Single producer single consumer ring between the receiving thread and the writer. The receiver fills the slab at
+// receiverSeq and publishes it, the writer writes the slab at writerSeq and releases it. Each side only writes its
+// own sequence and keeps a cached copy of the other's, which is only re-read when the ring looks full or empty.
+// Writes take turns with the other rings on the same disk through its WriteScheduler.
 public class CircularBufferQueue implements Runnable {
-    private volatile byte[][] byteQueue;
-    private final AtomicIntegerArray indexFlags;
-    private volatile int head;
-    private volatile int tail;
-    private volatile int endBufferSize = Settings.blockBufferSize;
-    private final int blockBufferSize = Settings.blockBufferSize;
-    private final int capacity = Settings.queueSize;
-    private volatile boolean finished = false;
-    private final File file;
-    private volatile int state = 1;
+    private static final Set<CircularBufferQueue> live = ConcurrentHashMap.newKeySet();
+    private static final Metrics.Counter RECEIVER_STALL = Metrics.seconds("filedump_ring_receiver_stall_seconds_total",
+            "Time receiving threads waited for the writer to free a slab");
+    private static final Metrics.Counter WRITER_STALL = Metrics.seconds("filedump_ring_writer_stall_seconds_total",
+            "Time ring writers waited for the receiver to fill a slab");
+    private static final Metrics.Counter TURN_WAIT = Metrics.seconds("filedump_disk_turn_wait_seconds_total",
+            "Time ring writers waited for a turn at writing to their disk");
+    private static final Metrics.Histogram SLAB_WRITE = Metrics.histogram("filedump_slab_write_seconds",
+            "Time to write one slab to disk", Metrics.LATENCY);
 
-    public CircularBufferQueue(File file) {
-        this.file = file;
-        byteQueue = new byte[Settings.queueSize][Settings.blockBufferSize];
-        indexFlags = new AtomicIntegerArray(Settings.queueSize);
-        head = 0;
-        tail = 0;
+    static {
+        Metrics.gauge("filedump_ring_slabs_filled", "Slabs received and waiting to be written, over all rings",
+                      () -> live.stream().mapToLong(CircularBufferQueue::filled).sum());
+        Metrics.gauge("filedump_ring_slabs", "Slabs of all rings", () -> live.stream().mapToLong(q -> q.capacity).sum());
     }
 
-    public byte[] swap(byte[] buffer, boolean isLast, int size) {
-        int currTail = tail;
-        byteQueue[currTail] = buffer;
-        indexFlags.set(currTail, 2);
-        while (indexFlags.get((currTail + 1) % capacity) > 0) {
-            LockSupport.parkNanos(100);
+    private final ByteBuffer[] byteQueue; // slabs from the BufferArena, owned by the handshake
+    private final int capacity;
+    private final int mask;
+    private final Sequence published = new Sequence(); // slabs handed to the writer
+    private final Sequence released = new Sequence();  // slabs handed back to the receiver
+    private long receiverSeq = 0;     // receiving thread only
+    private long cachedReleased = 0;  // receiving thread only
+    private long writerSeq = 0;       // writer thread only
+    private long cachedPublished = 0; // writer thread only
+    private long endSeq = Long.MAX_VALUE; // sequence published with the last slab, visible through published
+    private final WaitStrategy receiverWait = WaitStrategy.of(Settings.receiveWaitStrategy);
+    private final WaitStrategy writerWait = WaitStrategy.of(Settings.writeWaitStrategy);
+    private final Handshake handshake;
+    private final Checksum checksum; // computed by the writer so the receiving thread only reads the socket
+    private final WriteScheduler disk;
+    private long queuedBytes = 0;  // receiving thread only
+    private long writtenBytes = 0; // writer thread only
+    private volatile int state = 1;
+    private volatile Thread completionWaiter;
+    private Thread writerThread;
+
+    // The output is opened by the writer thread at the offset negotiated by the handshake
+    public CircularBufferQueue(Handshake handshake) {
+        if (Integer.bitCount(handshake.slabs.length) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + handshake.slabs.length);
         }
-        if (isLast) {
-            finished = true;
-            endBufferSize = size;
+        this.handshake = handshake;
+        checksum = handshake.checksum;
+        disk = handshake.store != null ? handshake.store.writes : new WriteScheduler(0);
+        byteQueue = handshake.slabs;
+        capacity = byteQueue.length;
+        mask = capacity - 1;
+    }
+
+    // Slabs to acquire for a queue of the configured length
+    public static int ringSize(int queueSize) {
+        return queueSize <= 2 ? 2 : Integer.highestOneBit(queueSize - 1) << 1;
+    }
+
+    public void start() {
+        live.add(this);
+        writerThread = VirtualThreads.start(this);
+    }
+
+    private long filled() {
+        return published.get() - released.get();
+    }
+
+    // The buffer is handed over flipped so its limit carries the size. Returns the next slab to fill once the
+    // writer has released it.
+    public ByteBuffer swap(ByteBuffer buffer, boolean isLast) {
+        buffer.flip();
+        queuedBytes += buffer.limit();
+        disk.queued(buffer.limit());
+        long next = ++receiverSeq;
+        if (isLast) { endSeq = next; }
+        published.set(next);
+        writerWait.signal();
+        if (isLast) { return buffer; }
+
+        // The slab at next is free once the writer released everything up to one lap behind it
+        if (next - cachedReleased >= capacity) {
+            int round = 0;
+            long stalled = 0;
+            while (next - (cachedReleased = released.get()) >= capacity) {
+                if (state <= 0) { return buffer; } // writer stopped, stop waiting on a slot that won't free
+                if (round == 0) { stalled = System.nanoTime(); }
+                receiverWait.idle(round++);
+            }
+            if (round > 0) { RECEIVER_STALL.add(System.nanoTime() - stalled); }
         }
-        int nextTail = (currTail + 1) % capacity; // inc safe since only this thread mutates
-        indexFlags.set(nextTail, 1);
-        tail = nextTail;
-        return byteQueue[nextTail];
+        return byteQueue[(int) next & mask].clear();
     }
 
-    public byte[] getFirst() {
-        indexFlags.set(0, 1);
-        return byteQueue[0];
+    public ByteBuffer getFirst() {
+        return byteQueue[0].clear();
     }
 
     public int getState() {
         return state;
     }
 
-    public byte[] poll() {
-        int currHead = head % capacity;
-        while (isEmpty() || indexFlags.get(currHead) < 2) {
-            LockSupport.parkNanos(100);
+    public ByteBuffer poll() {
+        if (writerSeq >= cachedPublished) {
+            int round = 0;
+            long stalled = 0;
+            while (writerSeq >= (cachedPublished = published.get())) {
+                if (state <= 0) { return null; } // closed by the receiver
+                if (round == 0) { stalled = System.nanoTime(); }
+                writerWait.idle(round++);
+            }
+            if (round > 0) { WRITER_STALL.add(System.nanoTime() - stalled); }
         }
-        return byteQueue[currHead];
+        return byteQueue[(int) writerSeq & mask];
+    }
+
+    // Whether the slab returned by poll is the one the receiver swapped in as the last
+    public boolean polledLast() {
+        return writerSeq + 1 == endSeq;
     }
 
     public void wrote() {
-        int oldHead = head;
-        head = (oldHead + 1) % capacity; //inc  safe since only this thread mutates
-        indexFlags.set(oldHead, 0);
+        released.set(++writerSeq);
+        receiverWait.signal();
+    }
+
+    // Blocks until the writer has flushed the last buffer or failed
+    public void awaitCompletion() {
+        while (state > 0) {
+            completionWaiter = Thread.currentThread();
+            if (state > 0) { LockSupport.park(this); }
+            completionWaiter = null;
+        }
+    }
+
+    private static void signal(Thread waiter) {
+        if (waiter != null) { LockSupport.unpark(waiter); }
     }
 
     public boolean isEmpty() {
-        return head == tail;
+        return writerSeq >= published.get();
     }
 
     public void close() {
         state = 0;
+        receiverWait.signal();
+        writerWait.signal();
+    }
+
+    // Closes and waits for the writer to stop touching the slabs, so they can go back to the arena
+    public void shutdown() {
+        close();
+        live.remove(this);
+        if (writerThread == null) { return; }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) { Thread.currentThread().interrupt(); }
+        disk.written(queuedBytes - writtenBytes); // slabs left unwritten by a failed or closed transfer
     }
 
     @Override
     public void run() {
-        try (FileOutputStream outputFile = new FileOutputStream(file);
-             BufferedOutputStream bufferStream = Settings.writeBufferSize < 0
-                     ? new BufferedOutputStream(outputFile)
-                     : new BufferedOutputStream(outputFile, Settings.writeBufferSize)) {
-
+        // Slabs are already blockBufferSize, written as they are without another copy through a stream buffer
+        boolean holding = false; // a turn at writing to the disk
+        try (FileChannel outputFile = handshake.openOutput();
+             DirectWriter direct = DirectWriter.open(handshake.freePath, handshake.startOffset)) {
+            long position = handshake.startOffset;
+            long batch = 0;
             while (state > 0) {
-                byte[] nextWrite = poll();
-                if (finished && ((head + 1) % capacity == tail)) {
-                    bufferStream.write(nextWrite, 0, endBufferSize);
-                    bufferStream.flush();
-                    state = 0;
+                // Give the disk up when out of slabs, or after a batch if another ring is waiting for it
+                if (holding && (isEmpty() || batch >= Settings.diskWriteBatch && disk.hasQueued())) {
+                    holding = false;
+                    disk.release();
+                }
+                ByteBuffer nextWrite = poll();
+                if (nextWrite == null) { break; }
+                if (!holding) {
+                    long waitStart = System.nanoTime();
+                    disk.acquire();
+                    TURN_WAIT.add(System.nanoTime() - waitStart);
+                    holding = true;
+                    batch = 0;
+                }
+                int bytes = nextWrite.remaining();
+                boolean last = polledLast();
+                if (checksum != null) {
+                    checksum.update(nextWrite);
+                    nextWrite.rewind();
+                }
+                long writeStart = System.nanoTime();
+                if (direct != null) {
+                    position += direct.write(nextWrite, position);
                 } else {
-                    bufferStream.write(nextWrite, 0, blockBufferSize);
+                    while (nextWrite.hasRemaining()) { outputFile.write(nextWrite); }
                 }
+                SLAB_WRITE.since(writeStart);
+                TransferStats.WRITTEN_BYTES.add(bytes);
+                batch += bytes;
+                writtenBytes += bytes;
+                disk.written(bytes);
+                if (last) { state = 0; }
                 wrote();
             }
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException e) {
             state = -1;
+            receiverWait.signal(); // a receiver waiting on a full ring sees the failure
             System.out.println("write error");
+        } finally {
+            if (holding) { disk.release(); }
+            signal(completionWaiter);
         }
     }
 }
-
@@ -0,0 +1,91 @@
+package dev.hickel;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+
+// Files deleteForSpace may remove, by the file system they free space on. Rebuilt from deletionDirectories with the
+// free space refresh, so making room for a transfer only picks from the index instead of listing directories.
+public class DeletionIndex {
+    public record Candidate(Path file, Path directory, long size, long modified) { }
+
+    // Smallest first, the oldest of equal sizes first
+    private static final Comparator<Candidate> ORDER =
+            Comparator.comparingLong(Candidate::size).thenComparingLong(Candidate::modified);
+
+    private volatile Map<DiskStore, List<Candidate>> candidates = Map.of();
+
+    public void rebuild(Function<Path, DiskStore> storeOf) {
+        if (!Settings.deleteForSpace) {
+            candidates = Map.of();
+            return;
+        }
+        Map<DiskStore, List<Candidate>> index = new HashMap<>();
+        for (Path directory : Settings.deletionDirectories) {
+            File[] files = directory.toFile().listFiles();
+            if (files == null) { continue; }
+            DiskStore store;
+            try {
+                store = storeOf.apply(directory);
+            } catch (UncheckedIOException e) {
+                continue;
+            }
+            for (File file : files) {
+                if (!file.isFile() || !Settings.deletedFileTypes.contains(getExt(file))) { continue; }
+                long size = file.length();
+                if (size < Settings.deletionThreshHold) { continue; }
+                index.computeIfAbsent(store, s -> new ArrayList<>())
+                        .add(new Candidate(file.toPath(), directory, size, file.lastModified()));
+            }
+        }
+        index.values().forEach(list -> list.sort(ORDER));
+        candidates = index;
+    }
+
+    // Files on store adding up to at least bytes, null if there aren't enough. Either the smallest single file that
+    // covers it or the largest files until covered without any that turn out not to be needed, whichever deletes less
+    public List<Candidate> select(DiskStore store, long bytes, Predicate<Path> deletable) {
+        List<Candidate> usable = candidates.getOrDefault(store, List.of()).stream()
+                .filter(candidate -> deletable.test(candidate.directory))
+                .toList();
+        Candidate single = usable.stream().filter(candidate -> candidate.size >= bytes).findFirst().orElse(null);
+        List<Candidate> several = largestUntil(usable, bytes);
+        if (single != null && (several == null || single.size <= size(several))) { return List.of(single); }
+        return several;
+    }
+
+    private static List<Candidate> largestUntil(List<Candidate> usable, long bytes) {
+        List<Candidate> picked = new ArrayList<>();
+        long sum = 0;
+        for (int i = usable.size() - 1; i >= 0 && sum < bytes; i--) {
+            picked.add(usable.get(i));
+            sum += usable.get(i).size;
+        }
+        if (sum < bytes) { return null; }
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            if (sum - picked.get(i).size >= bytes) { sum -= picked.remove(i).size; }
+        }
+        return picked;
+    }
+
+    public static long size(List<Candidate> files) {
+        return files.stream().mapToLong(Candidate::size).sum();
+    }
+
+    // Deleted files leave the index right away instead of at the next rebuild
+    public void removed(DiskStore store, Collection<Candidate> files) {
+        Map<DiskStore, List<Candidate>> index = new HashMap<>(candidates);
+        List<Candidate> remaining = new ArrayList<>(index.getOrDefault(store, List.of()));
+        remaining.removeAll(files);
+        index.put(store, remaining);
+        candidates = index;
+    }
+
+    private static String getExt(File file) {
+        return file.getName().substring(file.getName().lastIndexOf('.') + 1);
+    }
+}
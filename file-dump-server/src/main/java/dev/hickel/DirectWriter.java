@@ -0,0 +1,78 @@
+package dev.hickel;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+// Writes around the page cache with O_DIRECT for files under directWriteDirectories, so bulk transfers don't evict
+// everything else and leave gigabytes of dirty pages for writeback. Buffer addresses, lengths and file positions
+// must be multiples of the file system block size. Only the last write of a file may be short, it is padded with
+// zeros to a whole block and the file is cut back to its real length right after.
+public class DirectWriter implements Closeable {
+    private final FileChannel channel;
+    private final int alignment;
+    private boolean tailWritten = false;
+
+    private DirectWriter(FileChannel channel, int alignment) {
+        this.channel = channel;
+        this.alignment = alignment;
+    }
+
+    // Null if the directory isn't set for direct writes or this transfer can't use them, the caller then writes
+    // through its normal channel. The file must already exist.
+    public static DirectWriter open(Path path, long position) {
+        if (!isDirectDirectory(path.getParent())) { return null; }
+        try {
+            int alignment = (int) Files.getFileStore(path).getBlockSize();
+            if (alignment > BufferArena.ALIGNMENT || position % alignment != 0
+                    || Settings.blockBufferSize % alignment != 0) {
+                System.out.println("Transfer not aligned to the " + alignment + " byte block size, using the page cache: "
+                        + path.getFileName());
+                return null;
+            }
+            return new DirectWriter(FileChannel.open(path, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT),
+                                    alignment);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Direct writes not supported in: " + path.getParent() + ", using the page cache");
+            return null;
+        }
+    }
+
+    private static boolean isDirectDirectory(Path directory) {
+        Path dir = directory.toAbsolutePath().normalize();
+        return Settings.directWriteDirectories.stream().anyMatch(p -> p.toAbsolutePath().normalize().equals(dir));
+    }
+
+    // Writes the buffer's remaining bytes at position, returns how many bytes of data were written
+    public int write(ByteBuffer buffer, long position) throws IOException {
+        if (tailWritten) { throw new IOException("Write after the unaligned end of file"); }
+        int size = buffer.remaining();
+        int tail = size % alignment;
+        if (tail != 0) {
+            int end = buffer.limit() + alignment - tail;
+            buffer.limit(end);
+            for (int i = end - alignment + tail; i < end; i++) { buffer.put(i, (byte) 0); }
+        }
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+        if (tail != 0) {
+            tailWritten = true;
+            channel.truncate(position + size);
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,53 @@
+package dev.hickel;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Free space of one file system, shared by every output path on it. The usable space is read in the background by
+// ActivePaths, placement only reads the cached value. Bytes promised to transfers but not on disk yet are reserved
+// on top of it with a compare and set, so two transfers can't both be placed into the same free space. Writes to
+// the disk take turns through its WriteScheduler.
+public class DiskStore {
+    private final FileStore fileStore;
+    public final WriteScheduler writes = new WriteScheduler(Settings.writersPerDisk);
+    private volatile long usable;
+    private final AtomicLong reserved = new AtomicLong();
+
+    public DiskStore(FileStore fileStore) throws IOException {
+        this.fileStore = fileStore;
+        usable = fileStore.getUsableSpace();
+    }
+
+    public long free() {
+        return usable - reserved.get();
+    }
+
+    public long reserved() {
+        return reserved.get();
+    }
+
+    // Placement needs more than the file free, same as before reservations
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long current = reserved.get();
+            if (usable - current <= bytes) { return false; }
+            if (reserved.compareAndSet(current, current + bytes)) { return true; }
+        }
+    }
+
+    // Also used to grow a reservation, a negative release never fails
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    public void refresh() throws IOException {
+        usable = fileStore.getUsableSpace();
+    }
+
+    @Override
+    public String toString() {
+        return fileStore.toString();
+    }
+}
@@ -3,7 +3,7 @@ package dev.hickel;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Path;
+import java.nio.channels.Channels;
 
 
 public class FileReceiver implements Runnable {
@@ -27,35 +27,40 @@ public class FileReceiver implements Runnable {
         try (DataInputStream socketIn = new DataInputStream(socket.getInputStream());
              DataOutputStream socketOut = new DataOutputStream(socket.getOutputStream())) {
 
-            fileName = socketIn.readUTF();
-            fileSize = socketIn.readLong();
-
             // Check for free space, send boolean to client if space not available, or file exists
-            Path freePath = activePaths.getNewPath(fileName, fileSize);
-            if (freePath == null) {
-                socketOut.writeBoolean(false);
-                socketOut.flush();
+            Handshake handshake = new Handshake(socketIn, socketOut);
+            boolean placed = handshake.place(activePaths, false, 0);
+            fileName = handshake.fileName;
+            fileSize = handshake.fileSize;
+            if (!placed) {
                 System.out.println("No space for, file already exists, or all paths in use: " + fileName);
                 return;
             }
 
             // Inform client to begin
-            File outputFile = freePath.toFile();
+            File outputFile = handshake.freePath.toFile();
             System.out.println("Receiving file: " + fileName +" to: " + outputFile.getParentFile());
-            socketOut.writeBoolean(true);
+            handshake.negotiate(activePaths, Protocol.FLAG_RESUME | Protocol.FLAG_CHECKSUM | Protocol.FLAG_V2);
 
-            try (FileOutputStream outFileStream = new FileOutputStream(outputFile);
+            try (OutputStream outFileStream = Channels.newOutputStream(handshake.openOutput());
                  BufferedOutputStream bufferStream = Settings.writeBufferSize < 0
                          ? new BufferedOutputStream(outFileStream)
                          : new BufferedOutputStream(outFileStream, Settings.writeBufferSize)) {
 
+                byte[] frame = new byte[Math.max(handshake.frameSize, 32768)];
                 while (true) {
 
                     // FLush buffer to disk, and clean up
-                    int bytesReceived = socketIn.readInt();
+                    int bytesReceived = handshake.nextFrame();
                     if (bytesReceived == -1) {
                         bufferStream.flush();
                         activePaths.removeActiveTransfer(fileName);
+                        if (!handshake.checksumMatches()) {
+                            handshake.discardOutput();
+                            socketOut.writeBoolean(false);
+                            socketOut.flush();
+                            throw new IllegalStateException("Checksum mismatch, removed: " + outputFile);
+                        }
                         File finalFile = new File(outputFile.getParent(), fileName);
                         outputFile.renameTo(finalFile);
 
@@ -69,17 +74,21 @@ public class FileReceiver implements Runnable {
                         long seconds = (System.currentTimeMillis() - startTime) / 1000;
                         String metrics = "Finished receiving file: " + fileName +" to: " + outputFile.getParentFile() +
                                 "\tTime: " + seconds + " Sec" +
-                                "\tSpeed: " + Math.round((double) fileSize / 1048576 / seconds) + " MiBs";
-                        int[] stats = TransferStats.incStats(fileSize);
+                                "\tSpeed: " + Math.round((double) handshake.expectedBytes / 1048576 / seconds) + " MiBs" +
+                                handshake.checksumStats();
+                        int[] stats = TransferStats.incStats(fileSize, startTime);
                         System.out.println(metrics);
                         System.out.println("Daily Stats | Count: " + stats[0] +" | Transferred: " + stats[1] + " GiB" );
                         return;
                     }
 
-                    // Read buffer
-
+                    // Read buffer, v1 frames have no negotiated size so it grows to the largest seen
+                    if (bytesReceived > frame.length) { frame = new byte[bytesReceived]; }
+                    socketIn.readFully(frame, 0, bytesReceived);
+                    if (handshake.checksum != null) { handshake.checksum.update(frame, 0, bytesReceived); }
                     try {
-                        bufferStream.write(socketIn.readNBytes(bytesReceived), 0, bytesReceived);
+                        bufferStream.write(frame, 0, bytesReceived);
+                        TransferStats.WRITTEN_BYTES.add(bytesReceived);
                     } catch (Exception e) {
                         System.out.println("Error writing, assuming directory has improper privileges.");
                         System.out.println("Removed Path: " + activePaths.getExistingPath(fileName));
@@ -89,12 +98,14 @@ public class FileReceiver implements Runnable {
                 }
             }
         } catch (IOException e) {
+            TransferStats.FAILED.inc();
             activePaths.removeActiveTransfer(fileName);
             System.out.println("Error encountered aborting transfer of: " + fileName);
             e.printStackTrace();
             try { socket.close();
             } catch (IOException ee) { System.out.println("Error closing socket"); }
         } catch (Exception e) {
+            TransferStats.FAILED.inc();
             activePaths.removeActiveTransfer(fileName);
             e.printStackTrace();
             try { socket.close();
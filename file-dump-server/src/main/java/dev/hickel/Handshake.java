@@ -0,0 +1,243 @@
+package dev.hickel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+
+// Server side of the handshake for the blocking receivers. Reads the v1 header, places the file (or joins a
+// stripe group) and negotiates the extensions the receiver supports, see Protocol.
+public class Handshake {
+    private static final int RESUME_VERIFY_BYTES = 1048576;
+    private final DataInputStream socketIn;
+    private final DataOutputStream socketOut;
+    public String fileName = "";
+    public long fileSize;
+    public Path freePath;
+    public DiskStore store; // of freePath, null if it went away since placement
+    public StripeGroup stripeGroup;
+    public int stripeIndex = 0;
+    public int flags = 0;         // accepted extensions
+    public long startOffset = 0;  // where this connection's data starts in the file
+    public long expectedBytes;    // how many bytes this connection will send
+    public boolean v2 = false;    // typed frames, see Protocol.FLAG_V2
+    public int frameSize = 0;     // largest data frame the client may send in v2
+    public Checksum checksum;     // set when the client sends a checksum
+    public ByteBuffer[] slabs;    // receive buffers from the arena, null when none were asked for
+    private long expectedChecksum;
+    private final byte[] header = new byte[5];
+    private int firstFrame;       // v1 frame length read while checking for an extension block
+    private boolean firstFramePending = false;
+
+    public Handshake(DataInputStream socketIn, DataOutputStream socketOut) {
+        this.socketIn = socketIn;
+        this.socketOut = socketOut;
+    }
+
+    // Reserves a path for the file and slabCount receive buffers, replies REJECTED and returns false if either isn't
+    // available
+    public boolean place(ActivePaths activePaths, boolean allowStripes, int slabCount) throws IOException {
+        fileName = socketIn.readUTF();
+        fileSize = socketIn.readLong();
+        expectedBytes = fileSize;
+
+        if (slabCount > 0 && (slabs = BufferArena.acquire(slabCount, Settings.blockBufferSize)) == null) {
+            System.out.println("Memory budget reached, rejecting: " + fileName);
+            socketOut.writeByte(Protocol.REJECTED);
+            socketOut.flush();
+            return false;
+        }
+
+        // Joining stripes write into the reservation of stripe 0, everything else gets a new path
+        if (fileName.startsWith(Protocol.STRIPE_PREFIX)) {
+            String stripe = fileName.substring(Protocol.STRIPE_PREFIX.length());
+            stripeIndex = Integer.parseInt(stripe.substring(0, stripe.indexOf(':')));
+            fileName = stripe.substring(stripe.indexOf(':') + 1);
+            stripeGroup = allowStripes ? activePaths.joinStripe(fileName, stripeIndex) : null;
+            freePath = stripeGroup == null ? null : stripeGroup.getTmpPath();
+        } else {
+            freePath = activePaths.getNewPath(fileName, fileSize);
+        }
+
+        if (freePath == null) {
+            releaseSlabs();
+            socketOut.writeByte(Protocol.REJECTED);
+            socketOut.flush();
+            return false;
+        }
+        store = activePaths.storeOf(fileName);
+        return true;
+    }
+
+    // Only once nothing reads into or writes from the slabs anymore
+    public void releaseSlabs() {
+        if (slabs == null) { return; }
+        BufferArena.release(slabs);
+        slabs = null;
+    }
+
+    // Accepts the transfer and handles the extension block if the client sends one
+    public void negotiate(ActivePaths activePaths, int supportedFlags) throws IOException {
+        socketOut.writeByte(Protocol.ACCEPTED_EXTENDED);
+        socketOut.flush();
+
+        firstFrame = socketIn.readInt();
+        firstFramePending = firstFrame != Protocol.EXTENSION_MARKER;
+        if (!firstFramePending) {
+            int sent = socketIn.readInt();
+            int requested = sent & supportedFlags;
+            DataInputStream fields = Protocol.readBlock(socketIn);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            DataOutputStream responseOut = new DataOutputStream(response);
+
+            // Fields are in ascending flag order, fields of flags the client sent are read even if not supported
+            if ((sent & Protocol.FLAG_STRIPE) != 0
+                    && readStripe(fields, activePaths, (requested & Protocol.FLAG_STRIPE) != 0)) {
+                flags |= Protocol.FLAG_STRIPE;
+            }
+            if ((requested & Protocol.FLAG_RESUME) != 0 && stripeGroup == null && Settings.resumePartialFiles) {
+                flags |= Protocol.FLAG_RESUME;
+                writeResumeOffer(responseOut);
+            }
+            if ((requested & Protocol.FLAG_CHECKSUM) != 0) {
+                flags |= Protocol.FLAG_CHECKSUM;
+                checksum = new Checksum();
+            }
+            if ((requested & Protocol.FLAG_V2) != 0) {
+                // Frames are read straight into the write buffers, so no larger than one of them
+                frameSize = Math.max(4096, Math.min(fields.readInt(), Settings.blockBufferSize));
+                flags |= Protocol.FLAG_V2;
+                v2 = true;
+                responseOut.writeInt(frameSize);
+            }
+
+            socketOut.writeInt(flags);
+            socketOut.writeInt(response.size());
+            response.writeTo(socketOut);
+            socketOut.flush();
+
+            if ((flags & Protocol.FLAG_RESUME) != 0) {
+                long confirmed = socketIn.readLong();
+                startOffset = confirmed > 0 && confirmed <= partialLength() ? confirmed : 0;
+                expectedBytes = fileSize - startOffset;
+                if (startOffset > 0) {
+                    System.out.println("Resuming transfer of: " + fileName + " at: " + startOffset / 1048576 + " MiB");
+                }
+            }
+        }
+        if (stripeGroup != null && (flags & Protocol.FLAG_STRIPE) == 0) {
+            throw new IllegalStateException("Joined stripe did not send its range: " + fileName);
+        }
+    }
+
+    // Opens the .tmp positioned at startOffset, dropping anything after it. Striped files are truncated once when
+    // the group is created since stripes may already be writing by the time stripe 0 opens it
+    public FileChannel openOutput() throws IOException {
+        FileChannel channel = FileChannel.open(freePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (stripeGroup == null) { Preallocation.truncate(channel, freePath, startOffset, fileSize); }
+        return channel.position(startOffset);
+    }
+
+    // Returns the length of the next data frame, -1 once the client sent EOF. Checksum and error frames are
+    // handled here, the caller reads the payload from the socket itself
+    public int nextFrame() throws IOException {
+        if (!v2) {
+            int length = firstFramePending ? firstFrame : readHeader(4);
+            firstFramePending = false;
+            if (length == -1 && checksum != null) { expectedChecksum = socketIn.readLong(); } // v1 sends it after EOF
+            if (length < -1) { throw new IOException("Invalid frame length: " + length); }
+            return length;
+        }
+        while (true) {
+            int length = readHeader(5);
+            switch (header[0]) {
+                case Protocol.FRAME_DATA -> {
+                    if (length < 0 || length > frameSize) { throw new IOException("Invalid frame length: " + length); }
+                    return length;
+                }
+                case Protocol.FRAME_EOF -> { return -1; }
+                case Protocol.FRAME_CHECKSUM -> expectedChecksum = socketIn.readLong();
+                case Protocol.FRAME_ERROR -> throw new IOException("Client aborted transfer: "
+                        + new String(socketIn.readNBytes(Math.min(length, 4096)), StandardCharsets.UTF_8));
+                default -> throw new IOException("Unknown frame type: " + header[0]);
+            }
+        }
+    }
+
+    // One read for the whole header, the length is always the last 4 bytes
+    private int readHeader(int size) throws IOException {
+        socketIn.readFully(header, 0, size);
+        return (header[size - 4] & 0xFF) << 24 | (header[size - 3] & 0xFF) << 16
+                | (header[size - 2] & 0xFF) << 8 | (header[size - 1] & 0xFF);
+    }
+
+    public boolean checksumMatches() {
+        if (checksum == null || checksum.getValue() == expectedChecksum) { return true; }
+        System.out.println("Checksum mismatch for: " + fileName
+                + (stripeGroup != null ? " | Stripe: " + stripeIndex : ""));
+        return false;
+    }
+
+    // Corrupt data must not be resumed from
+    public void discardOutput() {
+        try { Files.deleteIfExists(freePath); } catch (IOException e) {
+            System.out.println("Error deleting partial file: " + freePath);
+        }
+    }
+
+    public String checksumStats() {
+        return checksum != null ? "\tChecksum: " + checksum.getMillis() + " ms" : "";
+    }
+
+    private boolean readStripe(DataInputStream fields, ActivePaths activePaths, boolean supported) throws IOException {
+        int index = fields.readInt();
+        int count = fields.readInt();
+        long offset = fields.readLong();
+        long length = fields.readLong();
+        boolean valid = supported && offset >= 0 && length >= 0 && offset + length <= fileSize
+                && (stripeGroup != null ? index == stripeIndex : index == 0 && count > 1 && count <= 64);
+        if (!valid) { return false; }
+        if (stripeGroup == null) {
+            try (FileChannel channel = FileChannel.open(freePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                Preallocation.truncate(channel, freePath, 0, fileSize);
+            }
+            stripeGroup = activePaths.startStripes(fileName, freePath, fileSize, count);
+        }
+        startOffset = offset;
+        expectedBytes = length;
+        return true;
+    }
+
+    // Offers the length of an existing partial file with a crc of its tail, the client confirms the offset only
+    // if its own bytes at that range match
+    private void writeResumeOffer(DataOutputStream out) throws IOException {
+        long partial = partialLength();
+        int tailLength = (int) Math.min(partial, RESUME_VERIFY_BYTES);
+        out.writeLong(partial);
+        out.writeInt(tailLength);
+        out.writeLong(partial > 0 ? tailChecksum(freePath, partial - tailLength, tailLength) : 0);
+    }
+
+    // Offered on a block boundary so a resumed transfer can still write with O_DIRECT
+    private long partialLength() {
+        long length = freePath.toFile().length();
+        return length <= fileSize ? length - length % BufferArena.ALIGNMENT : 0;
+    }
+
+    static long tailChecksum(Path path, long position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) { break; }
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.flip());
+            return crc.getValue();
+        }
+    }
+}
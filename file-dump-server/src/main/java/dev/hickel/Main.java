@@ -2,6 +2,8 @@ package dev.hickel;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -11,16 +13,22 @@ public class Main {
 
     public static void main(String[] args) {
         final ActivePaths activePaths = new ActivePaths();
-        final ExecutorService executor = Executors.newCachedThreadPool();
         AtomicBoolean exit = new AtomicBoolean(false);
 
         try { Settings.load(); } catch (IOException e) {
             System.out.println("Failed to load config, exiting...");
             throw new RuntimeException(e);
         }
+        final ExecutorService executor = VirtualThreads.enabled()
+                ? VirtualThreads.newExecutor()
+                : Executors.newCachedThreadPool();
         activePaths.replaceList(Settings.outputDirectories);
         Runtime.getRuntime().addShutdownHook(new Thread(executor::shutdownNow));
 
+        if (Settings.capacityPort > 0) { executor.submit(new CapacityServer(activePaths)); }
+        Metrics.gauge("filedump_buffer_arena_bytes", "Receive buffer bytes in use", BufferArena::getInUse);
+        Metrics.export(Settings.bindAddress, Settings.metricsPort);
+
         executor.submit(() -> {
             while (true) {
                 try {
@@ -38,19 +46,26 @@ public class Main {
         try { addr = InetAddress.getByName(Settings.bindAddress);
         } catch (UnknownHostException e) { throw new RuntimeException("Failed to bind to address");
         }
-        try (ServerSocket serverSocket = new ServerSocket()) {
-            serverSocket.bind(new InetSocketAddress(addr, Settings.port));
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(addr, Settings.port));
+            if (Settings.nioServer) {
+                new SelectorServer(activePaths).serve(serverChannel);
+                return;
+            }
             System.out.println("Server started. Waiting for connections...");
             while (!exit.get()) {
-                Socket socket = serverSocket.accept();
-                System.gc();
-                executor.submit(Settings.separateThreadForWriting
-                                        ? new QueuedFileReceiver(socket, activePaths)
-                                        : new FileReceiver(socket, activePaths)
-                );
+                SocketChannel socketChannel = serverChannel.accept();
+                executor.submit(newReceiver(socketChannel, activePaths));
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static Runnable newReceiver(SocketChannel socketChannel, ActivePaths activePaths) throws SocketException {
+        if (Settings.transferMode.equals("zerocopy")) { return new ZeroCopyFileReceiver(socketChannel, activePaths); }
+        return Settings.separateThreadForWriting
+                ? new QueuedFileReceiver(socketChannel, activePaths)
+                : new FileReceiver(socketChannel.socket(), activePaths);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,316 @@
+package dev.hickel;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+// Counters, gauges and latency histograms, exported as the JMX bean dev.hickel:type=Metrics and in the Prometheus
+// text format on metricsPort. Counters and histograms are LongAdders created once up front, so recording from the
+// hot loops takes no lock and allocates nothing. Gauges are read from their supplier only when scraped. Times are
+// recorded in nanoseconds and exported in seconds.
+public class Metrics {
+    public static final double[] LATENCY = {0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5};
+    public static final double[] DURATION = {1, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+    private static final double NANOS = 1e-9;
+    private static final Map<String, Family> families = new LinkedHashMap<>(); // guarded by itself
+
+    private record Family(String name, String help, String type, List<Metric> metrics) { }
+
+    private interface Metric {
+        String labels();
+
+        void render(String name, StringBuilder out);
+
+        void attributes(String name, Map<String, Object> out);
+    }
+
+    public static Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    // labels preformatted, eg reason="exists"
+    public static Counter counter(String name, String help, String labels) {
+        return register(name, help, "counter", labels, () -> new Counter(labels, 1));
+    }
+
+    // A counter of nanoseconds, exported in seconds
+    public static Counter seconds(String name, String help) {
+        return register(name, help, "counter", "", () -> new Counter("", NANOS));
+    }
+
+    public static Histogram histogram(String name, String help, double[] bucketSeconds) {
+        return register(name, help, "histogram", "", () -> new Histogram(bucketSeconds));
+    }
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        register(name, help, "gauge", "", () -> new Gauge(value));
+    }
+
+    // One series per key of the map, labelled label="key"
+    public static void gauges(String name, String help, String label, Supplier<Map<?, ? extends Number>> values) {
+        register(name, help, "gauge", "", () -> new GaugeMap(label, values));
+    }
+
+    // Registering a name and labels again returns the metric already there
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> T register(String name, String help, String type, String labels,
+            Supplier<T> create) {
+        synchronized (families) {
+            Family family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ArrayList<>()));
+            for (Metric metric : family.metrics) {
+                if (metric.labels().equals(labels)) { return (T) metric; }
+            }
+            T metric = create.get();
+            family.metrics.add(metric);
+            return metric;
+        }
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : snapshot()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Metric metric : family.metrics) { metric.render(family.name, out); }
+        }
+        return out.toString();
+    }
+
+    private static Map<String, Object> attributes() {
+        Map<String, Object> attributes = new TreeMap<>();
+        for (Family family : snapshot()) {
+            for (Metric metric : family.metrics) { metric.attributes(family.name, attributes); }
+        }
+        return attributes;
+    }
+
+    private static List<Family> snapshot() {
+        synchronized (families) {
+            return families.values().stream()
+                    .map(f -> new Family(f.name, f.help, f.type, List.copyOf(f.metrics)))
+                    .toList();
+        }
+    }
+
+    // Registers the JMX bean, and serves /metrics when port is above 0
+    public static void export(String bindAddress, int port) {
+        try {
+            ObjectName name = new ObjectName("dev.hickel:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) { server.registerMBean(new Bean(), name); }
+        } catch (JMException e) {
+            System.out.println("Failed to register metrics with jmx: " + e.getMessage());
+        }
+        if (port <= 0) { return; }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) { out.write(body); }
+            });
+            http.start();
+            System.out.println("Serving metrics on port: " + port);
+        } catch (IOException e) {
+            System.out.println("Failed to open metrics port: " + port);
+            e.printStackTrace();
+        }
+    }
+
+    private static String series(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    public static class Counter implements Metric {
+        private final LongAdder value = new LongAdder();
+        private final String labels;
+        private final double scale;
+
+        private Counter(String labels, double scale) {
+            this.labels = labels;
+            this.scale = scale;
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public String labels() {
+            return labels;
+        }
+
+        @Override
+        public void render(String name, StringBuilder out) {
+            out.append(series(name, labels)).append(' ').append(format(value.sum() * scale)).append('\n');
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            out.put(series(name, labels), value.sum() * scale);
+        }
+    }
+
+    public static class Histogram implements Metric {
+        private final double[] bounds;
+        private final long[] boundNanos;
+        private final LongAdder[] buckets; // one per bound plus +Inf, not cumulative
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            boundNanos = Arrays.stream(bounds).mapToLong(b -> (long) (b / NANOS)).toArray();
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) { buckets[i] = new LongAdder(); }
+        }
+
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < boundNanos.length && nanos > boundNanos[i]) { i++; }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public void since(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public String labels() {
+            return "";
+        }
+
+        @Override
+        public void render(String name, StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? format(bounds[i]) : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum ").append(format(sumNanos.sum() * NANOS)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            long count = 0;
+            for (LongAdder bucket : buckets) { count += bucket.sum(); }
+            out.put(name + "_count", (double) count);
+            out.put(name + "_sum", sumNanos.sum() * NANOS);
+        }
+    }
+
+    private record Gauge(LongSupplier value) implements Metric {
+
+        @Override
+        public String labels() {
+            return "";
+        }
+
+        @Override
+        public void render(String name, StringBuilder out) {
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            out.put(name, (double) value.getAsLong());
+        }
+    }
+
+    private record GaugeMap(String label, Supplier<Map<?, ? extends Number>> values) implements Metric {
+
+        @Override
+        public String labels() {
+            return "";
+        }
+
+        @Override
+        public void render(String name, StringBuilder out) {
+            for (var entry : values.get().entrySet()) {
+                out.append(series(name, label(entry.getKey()))).append(' ')
+                        .append(format(entry.getValue().doubleValue())).append('\n');
+            }
+        }
+
+        @Override
+        public void attributes(String name, Map<String, Object> out) {
+            for (var entry : values.get().entrySet()) {
+                out.put(series(name, label(entry.getKey())), entry.getValue().doubleValue());
+            }
+        }
+
+        private String label(Object key) {
+            String value = key.toString().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            return label + "=\"" + value + "\"";
+        }
+    }
+
+    // Every series is a read only double attribute named like its Prometheus series
+    private static class Bean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) { throw new AttributeNotFoundException(attribute); }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) { list.add(new Attribute(name, attributes.get(name))); }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] infos = attributes().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, "double", name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "file-dump metrics", infos, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package dev.hickel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+
+// State of one transfer in the selector server. Everything except the write/placement/finish tasks runs on the
+// owning io thread. Full buffers are queued and written in order by at most one writer task at a time, reading
+// from the socket pauses when queueSize buffers are waiting on the disk. The buffers come from the BufferArena at
+// placement and go back once the connection is closed and no write is in flight.
+public class NioConnection {
+    private static final int READ_HEADER = 0;
+    private static final int PLACING = 1;
+    private static final int READ_FRAME_HEADER = 2;
+    private static final int READ_FRAME = 3;
+    private static final int FINISHING = 4;
+    private static final int CLOSED = 5;
+
+    private final SocketChannel socketChannel;
+    private final SelectorServer.IoWorker worker;
+    private final ActivePaths activePaths;
+    private final ExecutorService writerPool;
+    private final ByteBuffer control = ByteBuffer.allocate(2 + 65535 + 8); // max writeUTF + writeLong
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(4);
+
+    // Shared with the writer task, guarded by this
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private boolean writing = false;
+    private boolean writeFailed = false;
+    private boolean closed = false;
+    private ByteBuffer[] slabs;
+
+    private SelectionKey key;
+    private int state = READ_HEADER;
+    private boolean paused = false;
+    private ByteBuffer current;
+    private int frameRemaining;
+    private ByteBuffer reply;
+    private boolean closeAfterReply;
+    private long lastActivity = System.currentTimeMillis();
+
+    private String fileName = "";
+    private long fileSize;
+    private Path freePath;
+    private FileChannel fileChannel;
+    private long writePosition = 0; // only touched by the writer task
+    private boolean reserved = false;
+    private final long startTime = System.currentTimeMillis();
+
+    public NioConnection(SocketChannel socketChannel, SelectorServer.IoWorker worker, ActivePaths activePaths,
+            ExecutorService writerPool) {
+        this.socketChannel = socketChannel;
+        this.worker = worker;
+        this.activePaths = activePaths;
+        this.writerPool = writerPool;
+        control.limit(2);
+    }
+
+    void register() {
+        try {
+            key = socketChannel.register(worker.getSelector(), SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+    long idleFor(long now) {
+        // Only time out while waiting on the client, not while waiting on our own disk work
+        boolean waitingOnClient = (state == READ_HEADER || state == READ_FRAME_HEADER || state == READ_FRAME) && !paused;
+        return waitingOnClient ? now - lastActivity : 0;
+    }
+
+    void onReadable() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        while (state != CLOSED && !paused) {
+            switch (state) {
+                case READ_HEADER -> {
+                    if (!fill(control)) { return; }
+                    if (control.limit() == 2) {
+                        control.limit(2 + (control.getShort(0) & 0xFFFF) + 8);
+                        continue;
+                    }
+                    DataInputStream in = new DataInputStream(
+                            new ByteArrayInputStream(control.array(), 0, control.limit()));
+                    fileName = in.readUTF();
+                    fileSize = in.readLong();
+                    state = PLACING;
+                    key.interestOps(0);
+                    writerPool.execute(this::place);
+                    return;
+                }
+                case READ_FRAME_HEADER -> {
+                    if (!fill(frameHeader)) { return; }
+                    int bytesReceived = frameHeader.flip().getInt();
+                    frameHeader.clear();
+                    if (bytesReceived == -1) {
+                        if (current != null && current.position() > 0) { submit(current); }
+                        current = null;
+                        state = FINISHING;
+                        key.interestOps(0);
+                        maybeFinish();
+                        return;
+                    }
+                    frameRemaining = bytesReceived;
+                    state = READ_FRAME;
+                }
+                case READ_FRAME -> {
+                    if (current == null && (current = nextBuffer()) == null) {
+                        paused = true; // resumed once the writer frees a buffer
+                        key.interestOps(0);
+                        return;
+                    }
+                    current.limit(Math.min(current.capacity(), current.position() + frameRemaining));
+                    int read = socketChannel.read(current);
+                    if (read < 0) { throw new EOFException("Connection closed mid frame"); }
+                    if (read == 0) { return; }
+                    frameRemaining -= read;
+                    if (current.position() == current.capacity()) {
+                        submit(current);
+                        current = null;
+                    }
+                    if (frameRemaining == 0) { state = READ_FRAME_HEADER; }
+                }
+                default -> { return; }
+            }
+        }
+    }
+
+    void onWritable() throws IOException {
+        socketChannel.write(reply);
+        if (reply.hasRemaining()) { return; }
+        if (closeAfterReply) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void fail(Exception e) {
+        if (state == CLOSED) { return; }
+        TransferStats.FAILED.inc();
+        System.out.println("Error encountered aborting transfer of: " + fileName);
+        e.printStackTrace();
+        close();
+    }
+
+    // Reads until the buffer is full, false if more data is needed
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        if (socketChannel.read(buffer) < 0) { throw new EOFException("Connection closed by client"); }
+        return !buffer.hasRemaining();
+    }
+
+    private synchronized ByteBuffer nextBuffer() {
+        return freeBuffers.poll();
+    }
+
+    private void submit(ByteBuffer buffer) {
+        buffer.flip();
+        boolean start;
+        synchronized (this) {
+            pendingWrites.add(buffer);
+            start = !writing;
+            writing = true;
+        }
+        if (start) { writerPool.execute(this::drainWrites); }
+    }
+
+    private synchronized boolean writesIdle() {
+        return !writing && pendingWrites.isEmpty();
+    }
+
+    private void maybeFinish() {
+        if (state == FINISHING && writesIdle()) {
+            state = PLACING; // parked until finish replies
+            writerPool.execute(this::finish);
+        }
+    }
+
+    private void sendReply(boolean value, boolean close) {
+        if (state == CLOSED) { return; }
+        reply = ByteBuffer.wrap(new byte[]{(byte) (value ? 1 : 0)});
+        closeAfterReply = close;
+        try {
+            onWritable();
+            if (reply.hasRemaining()) { key.interestOps(SelectionKey.OP_WRITE); }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void close() {
+        if (state == CLOSED) { return; }
+        state = CLOSED;
+        if (key != null) { key.cancel(); }
+        try { socketChannel.close(); } catch (IOException e) { System.out.println("Error closing socket"); }
+        if (fileChannel != null) {
+            try { fileChannel.close(); } catch (IOException ignored) { }
+        }
+        if (reserved) { activePaths.removeActiveTransfer(fileName); }
+        synchronized (this) {
+            closed = true;
+            // A failed writer has already returned, a running one releases when it drains
+            if (!writing || writeFailed) { releaseSlabs(); }
+        }
+    }
+
+    private synchronized void releaseSlabs() {
+        if (slabs == null) { return; }
+        freeBuffers.clear();
+        pendingWrites.clear();
+        BufferArena.release(slabs);
+        slabs = null;
+    }
+
+
+    // Writer pool tasks, results are handed back to the io thread through worker.execute
+
+    private void place() {
+        ByteBuffer[] buffers = BufferArena.acquire(Settings.queueSize, Settings.blockBufferSize);
+        if (buffers == null) {
+            System.out.println("Memory budget reached, rejecting: " + fileName);
+            worker.execute(() -> sendReply(false, true));
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                BufferArena.release(buffers);
+                return;
+            }
+            slabs = buffers;
+            freeBuffers.addAll(List.of(buffers));
+        }
+        Path path = activePaths.getNewPath(fileName, fileSize);
+        if (path == null) {
+            System.out.println("No space for, file already exists, or all paths in use: " + fileName);
+            releaseSlabs();
+            worker.execute(() -> sendReply(false, true));
+            return;
+        }
+        try {
+            fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            Preallocation.truncate(fileChannel, path, 0, fileSize);
+        } catch (IOException e) {
+            worker.execute(() -> {
+                reserved = true;
+                onWriteFailed();
+            });
+            return;
+        }
+        worker.execute(() -> {
+            if (state == CLOSED) {
+                close(fileChannel);
+                activePaths.removeActiveTransfer(fileName);
+                return;
+            }
+            freePath = path;
+            reserved = true;
+            System.out.println("Receiving file: " + fileName + " to: " + path.getParent());
+            state = READ_FRAME_HEADER;
+            sendReply(true, false);
+        });
+    }
+
+    private void drainWrites() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                buffer = pendingWrites.poll();
+                if (buffer == null) {
+                    writing = false;
+                    if (closed) { releaseSlabs(); }
+                    break;
+                }
+            }
+            try {
+                int bytes = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    writePosition += fileChannel.write(buffer, writePosition);
+                }
+                TransferStats.WRITTEN_BYTES.add(bytes);
+            } catch (IOException e) {
+                synchronized (this) {
+                    writeFailed = true;
+                    if (closed) { releaseSlabs(); }
+                }
+                worker.execute(this::onWriteFailed);
+                return; // leaves writing set, nothing more will be written for this transfer
+            }
+            synchronized (this) { freeBuffers.add(buffer.clear()); }
+            worker.execute(this::onBufferFreed);
+        }
+        worker.execute(this::maybeFinish);
+    }
+
+    private void finish() {
+        boolean success;
+        try {
+            fileChannel.close();
+            activePaths.removeActiveTransfer(fileName);
+            File outputFile = freePath.toFile();
+            File finalFile = new File(outputFile.getParent(), fileName);
+            outputFile.renameTo(finalFile);
+            success = finalFile.exists() && finalFile.length() == fileSize;
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+
+        if (success) {
+            long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+            String metrics = "Finished receiving file: " + fileName + " to: " + freePath.getParent() +
+                    "\tTime: " + seconds + " Sec" +
+                    "\tSpeed: " + Math.round((double) fileSize / 1048576 / seconds) + " MiBs";
+            int[] stats = TransferStats.incStats(fileSize, startTime);
+            System.out.println(metrics);
+            System.out.println("Daily Stats | Count: " + stats[0] + " | Transferred: " + stats[1] + " GiB");
+        } else {
+            TransferStats.FAILED.inc();
+            System.out.println("Output file does not exist, or is corrupted: " + fileName);
+        }
+        final boolean result = success;
+        worker.execute(() -> {
+            reserved = false;
+            sendReply(result, true);
+        });
+    }
+
+
+    // Io thread callbacks
+
+    private void onBufferFreed() {
+        if (state == CLOSED) { return; }
+        if (paused) {
+            paused = false;
+            key.interestOps(SelectionKey.OP_READ);
+            try { onReadable(); } catch (IOException e) { fail(e); }
+        }
+        maybeFinish();
+    }
+
+    private void onWriteFailed() {
+        if (state == CLOSED) { return; }
+        TransferStats.FAILED.inc();
+        System.out.println("Error writing, assuming directory has improper privileges.");
+        System.out.println("Removed Path: " + activePaths.getExistingPath(fileName));
+        activePaths.removePathOfTransfer(fileName);
+        close();
+    }
+
+    private static void close(FileChannel channel) {
+        try { channel.close(); } catch (IOException ignored) { }
+    }
+}
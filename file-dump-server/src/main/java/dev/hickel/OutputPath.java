@@ -0,0 +1,61 @@
+package dev.hickel;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// One output directory as placement sees it, everything here is kept up to date without touching the disk on the
+// accept path: the store and whether the directory is usable are refreshed in the background by ActivePaths.
+public class OutputPath {
+    public final Path path;
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile DiskStore store;
+    private volatile boolean available = true;
+
+    public OutputPath(Path path, DiskStore store) {
+        this.path = path;
+        this.store = store;
+    }
+
+    public DiskStore store() {
+        return store;
+    }
+
+    void setStore(DiskStore store) {
+        this.store = store;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public int writers() {
+        return writers.get();
+    }
+
+    // With limitOneTransferPerDirectory only one writer gets the directory
+    public boolean claim() {
+        if (!Settings.oneTransferPerDirectory) {
+            writers.incrementAndGet();
+            return true;
+        }
+        return writers.compareAndSet(0, 1);
+    }
+
+    public void release() {
+        writers.decrementAndGet();
+    }
+
+    public boolean canTake() {
+        return available && (!Settings.oneTransferPerDirectory || writers.get() == 0);
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
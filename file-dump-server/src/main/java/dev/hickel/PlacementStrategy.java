@@ -0,0 +1,91 @@
+package dev.hickel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// Order in which ActivePaths tries the output paths that have room for a file, the first one it can reserve wins.
+//   most-free      - the path with the most free space, spreads files by space
+//   round-robin    - each file starts one path further down outputDirectories than the last
+//   fill-first     - outputDirectories in order, a disk is filled before the next one is used
+//   fewest-writers - the path with the fewest transfers writing to it, then the most free space
+//   least-backlog  - the path whose disk has the fewest received bytes waiting to be written, then the most free space
+public abstract class PlacementStrategy {
+    // candidates keep the order of outputDirectories
+    public abstract List<OutputPath> order(List<OutputPath> candidates);
+
+    public static PlacementStrategy of(String name) {
+        return switch (name) {
+            case "most-free" -> new MostFree();
+            case "round-robin" -> new RoundRobin();
+            case "fill-first" -> new FillFirst();
+            case "fewest-writers" -> new FewestWriters();
+            case "least-backlog" -> new LeastBacklog();
+            default -> {
+                System.out.println("Unknown placement strategy: " + name + ", using most-free");
+                yield new MostFree();
+            }
+        };
+    }
+
+    // Free space, writers and backlog change under other placements, sort on one read of each so the order stays
+    // consistent
+    private static List<OutputPath> sorted(List<OutputPath> candidates, Comparator<Snapshot> first) {
+        Comparator<Snapshot> mostFree = Comparator.comparingLong(Snapshot::free).reversed();
+        return candidates.stream()
+                .map(path -> new Snapshot(path, path.writers(), path.store().free(), path.store().writes.backlog()))
+                .sorted(first == null ? mostFree : first.thenComparing(mostFree))
+                .map(Snapshot::path)
+                .toList();
+    }
+
+    private record Snapshot(OutputPath path, int writers, long free, long backlog) { }
+
+    private static class MostFree extends PlacementStrategy {
+
+        @Override
+        public List<OutputPath> order(List<OutputPath> candidates) {
+            return sorted(candidates, null);
+        }
+    }
+
+    private static class RoundRobin extends PlacementStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+
+        @Override
+        public List<OutputPath> order(List<OutputPath> candidates) {
+            if (candidates.isEmpty()) { return candidates; }
+            int start = Math.floorMod(next.getAndIncrement(), candidates.size());
+            List<OutputPath> ordered = new ArrayList<>(candidates.subList(start, candidates.size()));
+            ordered.addAll(candidates.subList(0, start));
+            return ordered;
+        }
+    }
+
+    private static class FillFirst extends PlacementStrategy {
+
+        @Override
+        public List<OutputPath> order(List<OutputPath> candidates) {
+            return candidates;
+        }
+    }
+
+    private static class FewestWriters extends PlacementStrategy {
+
+        @Override
+        public List<OutputPath> order(List<OutputPath> candidates) {
+            return sorted(candidates, Comparator.comparingInt(Snapshot::writers));
+        }
+    }
+
+    private static class LeastBacklog extends PlacementStrategy {
+
+        @Override
+        public List<OutputPath> order(List<OutputPath> candidates) {
+            return sorted(candidates, Comparator.comparingLong(Snapshot::backlog));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package dev.hickel;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// Reserves the blocks of a whole file up front so concurrent transfers to a disk don't interleave their extents.
+// Java has no fallocate, setLength only makes a sparse file, so this calls fallocate(2) from libc with
+// FALLOC_FL_KEEP_SIZE: the blocks are allocated but the length still grows with the data, which resuming relies on.
+// Linux only, elsewhere space is reserved by accounting alone.
+public class Preallocation {
+    private static final int O_WRONLY = 01;
+    private static final int O_CREAT = 0100;
+    private static final int FALLOC_FL_KEEP_SIZE = 0x01;
+    private static final int EINTR = 4;
+    private static final int ENOSYS = 38;
+    private static final int EOPNOTSUPP = 95;
+    private static final Set<Path> unsupported = ConcurrentHashMap.newKeySet();
+    private static final LibC libc = load();
+
+    private interface LibC extends Library {
+        int open(String path, int flags, int mode) throws LastErrorException;
+
+        int fallocate(int fd, int mode, long offset, long length) throws LastErrorException;
+
+        int close(int fd) throws LastErrorException;
+    }
+
+    private static LibC load() {
+        if (!Platform.isLinux()) { return null; }
+        try {
+            return Native.load("c", LibC.class);
+        } catch (UnsatisfiedLinkError e) {
+            System.out.println("libc not loadable, space is reserved by accounting only and files are not preallocated");
+            return null;
+        }
+    }
+
+    // True if the space is now allocated on disk, false if it couldn't be tried here. Throws if the disk refused,
+    // most likely for lack of space.
+    public static boolean allocate(Path path, long size) throws IOException {
+        return allocate(path, 0, size);
+    }
+
+    // Creates the file if needed, a file created here is removed again if the allocation fails
+    private static boolean allocate(Path path, long offset, long length) throws IOException {
+        if (libc == null || length <= 0 || unsupported.contains(path.getParent())) { return false; }
+        boolean created = !path.toFile().exists();
+        int fd;
+        try {
+            fd = libc.open(path.toString(), O_WRONLY | O_CREAT, 0644);
+        } catch (LastErrorException e) {
+            throw new IOException("Failed to open: " + path + " errno: " + e.getErrorCode());
+        }
+        try {
+            while (true) {
+                try {
+                    libc.fallocate(fd, FALLOC_FL_KEEP_SIZE, offset, length);
+                    return true;
+                } catch (LastErrorException e) {
+                    if (e.getErrorCode() == EINTR) { continue; }
+                    if (e.getErrorCode() == EOPNOTSUPP || e.getErrorCode() == ENOSYS) {
+                        unsupported.add(path.getParent());
+                        System.out.println("Preallocation not supported in: " + path.getParent());
+                        if (created) { path.toFile().delete(); }
+                        return false;
+                    }
+                    if (created) { path.toFile().delete(); }
+                    throw new IOException("fallocate failed, errno: " + e.getErrorCode());
+                }
+            }
+        } finally {
+            try { libc.close(fd); } catch (LastErrorException ignored) { }
+        }
+    }
+
+    // Cuts the file to length if it holds more. Truncating frees every block past length, including the ones
+    // reserved past the end with KEEP_SIZE, so the part of the file still to come is reserved again.
+    public static void truncate(FileChannel channel, Path path, long length, long fileSize) throws IOException {
+        if (length >= channel.size()) { return; }
+        channel.truncate(length);
+        if (Settings.preallocateFiles) { allocate(path, length, fileSize - length); }
+    }
+}
@@ -0,0 +1,62 @@
+package dev.hickel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+// Wire constants shared by the receivers.
+//
+// The handshake is always the v1 writeUTF(name) + writeLong(size). A server that understands extensions answers
+// ACCEPTED_EXTENDED instead of ACCEPTED, old clients read any non zero byte as accepted so they are unaffected.
+// A client that got ACCEPTED_EXTENDED may send an extension block in place of the first frame length:
+//   int EXTENSION_MARKER, int flags, int length, byte[length] fields of each flag in ascending bit order
+// and the server answers with the flags it accepted in the same layout (without the marker). Flags the server
+// does not accept are simply off for the rest of the transfer.
+public class Protocol {
+    public static final int REJECTED = 0;
+    public static final int ACCEPTED = 1;
+    public static final int ACCEPTED_EXTENDED = 2;
+    public static final int EXTENSION_MARKER = Integer.MIN_VALUE; // never a valid v1 frame length
+
+    // Fields: int stripeIndex, int stripeCount, long offset, long length
+    public static final int FLAG_STRIPE = 1;
+    // Request has no fields. Response: long partialLength, int tailLength, long tailCrc32c of the tailLength bytes
+    // before partialLength. The client then writes long startOffset, partialLength if its own tail matches, else 0
+    public static final int FLAG_RESUME = 2;
+    // No fields either way. After the EOF frame the client writes long crc32c of every byte it sent on this
+    // connection, the server compares it to what it wrote before answering
+    public static final int FLAG_CHECKSUM = 4;
+    // Request: int preferred frame size. Response: int frame size, at most the server's blockBufferSize. Data then
+    // flows as frames of byte type + int length + payload, with the checksum as a frame before EOF instead of
+    // after it. Frames are only flushed when the sender runs out of data, not after each one like v1
+    public static final int FLAG_V2 = 8;
+
+    public static final int FRAME_DATA = 0;
+    public static final int FRAME_EOF = 1;      // length 0
+    public static final int FRAME_ERROR = 2;    // utf8 message, the sender gave up, the partial file is kept
+    public static final int FRAME_CHECKSUM = 3; // long crc32c
+
+    // Joining stripes send this + index + ":" + fileName as their file name, never a valid path on any platform
+    public static final String STRIPE_PREFIX = "\u0000stripe:";
+
+    // Answer on capacityPort, written as soon as a client connects, then the connection is closed:
+    //   int CAPACITY_VERSION, int freeSlots, long largestFile, int pathCount, pathCount * (UTF path, long freeBytes)
+    // Only paths that can take a transfer right now are listed. freeSlots and largestFile are Integer.MAX_VALUE and
+    // Long.MAX_VALUE where the server doesn't limit them
+    public static final int CAPACITY_VERSION = 1;
+
+    public static DataInputStream readBlock(DataInputStream in) throws IOException {
+        byte[] block = new byte[in.readInt()];
+        in.readFully(block);
+        return new DataInputStream(new ByteArrayInputStream(block));
+    }
+
+    public static void writeBlock(DataOutputStream out, int flags, ByteArrayOutputStream fields) throws IOException {
+        out.writeInt(flags);
+        out.writeInt(fields.size());
+        fields.writeTo(out);
+    }
+}
@@ -3,77 +3,75 @@ package dev.hickel;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.time.Instant;
-import java.util.concurrent.locks.LockSupport;
 
 
 public class QueuedFileReceiver implements Runnable {
+    private final SocketChannel socketChannel;
     private final Socket socket;
     private final ActivePaths activePaths;
-    private byte[] buffer;
+    private ByteBuffer buffer;
 
     private CircularBufferQueue bufferQueue;
-    private final int blockBufferSize;
     private String fileName = "";
 
-    public QueuedFileReceiver(Socket socket, ActivePaths activePaths) throws SocketException {
-        this.socket = socket;
+    public QueuedFileReceiver(SocketChannel socketChannel, ActivePaths activePaths) throws SocketException {
+        this.socketChannel = socketChannel;
         this.activePaths = activePaths;
-        buffer = new byte[Settings.blockBufferSize];
+        socket = socketChannel.socket();
+        // Payloads are read through the channel which ignores SO_TIMEOUT, keep alive detects dead peers there
         socket.setSoTimeout(120_000);
+        socket.setKeepAlive(true);
         socket.setTrafficClass(24);
         if (Settings.socketBufferSize > 0) { socket.setReceiveBufferSize(Settings.socketBufferSize); }
-        blockBufferSize = Settings.blockBufferSize;
     }
 
     @Override
     public void run() {
         long fileSize = 0;
         var startTime = System.currentTimeMillis();
+        Handshake handshake = null;
         try (DataInputStream socketIn = new DataInputStream(socket.getInputStream());
              DataOutputStream socketOut = new DataOutputStream(socket.getOutputStream())) {
 
-            fileName = socketIn.readUTF();
-            fileSize = socketIn.readLong();
-
-            // Check for free space, send boolean to client if space not available, or file exists
-            Path freePath = activePaths.getNewPath(fileName, fileSize);
-            if (freePath == null) {
-                socketOut.writeBoolean(false);
-                socketOut.flush();
+            // Check for free space and memory, send boolean to client if not available, or file exists
+            handshake = new Handshake(socketIn, socketOut);
+            boolean placed = handshake.place(activePaths, false, CircularBufferQueue.ringSize(Settings.queueSize));
+            fileName = handshake.fileName;
+            fileSize = handshake.fileSize;
+            if (!placed) {
                 System.out.println("No space for, file already exists, or all paths in use: " + fileName);
                 return;
             }
 
-            // Start writeQueue thread and inform client to begin
-            File outputFile = freePath.toFile();
-            bufferQueue = new CircularBufferQueue(outputFile);
-            new Thread(bufferQueue).start();
-            System.out.println("Receiving file: " + fileName + " to: " + outputFile.getParentFile());
-            socketOut.writeBoolean(true);
-            socketOut.flush();
+            // Inform client to begin, then start writeQueue thread at the negotiated offset
+            File outputFile = handshake.freePath.toFile();
+            System.out.println("Receiving file: " + fileName + " to: " + outputFile.getParentFile() + diskQueue(handshake.store));
+            handshake.negotiate(activePaths, Protocol.FLAG_RESUME | Protocol.FLAG_CHECKSUM | Protocol.FLAG_V2);
+            bufferQueue = new CircularBufferQueue(handshake);
+            bufferQueue.start();
 
             buffer = bufferQueue.getFirst();
-            int currOffset = 0;
-            int bytesReceived;
             while (true) {
                 // Submit any remaining buffer if server is finished sending
-
-                bytesReceived = socketIn.readInt();
+                int bytesReceived = handshake.nextFrame();
                 if (bytesReceived == -1) {
-                    bufferQueue.swap(buffer, true, currOffset);
+                    bufferQueue.swap(buffer, true);
                     break;
                 }
 
-                // Read buffer
-                System.arraycopy(socketIn.readNBytes(bytesReceived), 0, buffer, currOffset, bytesReceived);
-                currOffset += bytesReceived;
+                // Read straight into the queue's slab, a frame may span two slabs
+                while (bytesReceived > 0) {
+                    buffer.limit(Math.min(buffer.capacity(), buffer.position() + bytesReceived));
+                    int read = socketChannel.read(buffer);
+                    if (read < 0) { throw new EOFException("Connection closed mid frame"); }
+                    bytesReceived -= read;
+                    buffer.limit(buffer.capacity());
 
-                // write if full
-                if (currOffset == blockBufferSize) {
-                    buffer = bufferQueue.swap(buffer, false, blockBufferSize);
-                    currOffset = 0;
+                    // write if full
+                    if (!buffer.hasRemaining()) { buffer = bufferQueue.swap(buffer, false); }
                 }
 
                 // Check for buffer error
@@ -88,43 +86,51 @@ public class QueuedFileReceiver implements Runnable {
             }
 
             // Wait for queue to complete it's writes, then close socket and cleanup
-            while (true) {
-                if (bufferQueue.getState() < 1) {
-                    activePaths.removeActiveTransfer(fileName);
-                    File finalFile = new File(outputFile.getParent(), fileName);
-                    outputFile.renameTo(finalFile);
-
-                    if (!finalFile.exists() || finalFile.length() != fileSize) {
-                        socketOut.writeBoolean(false); // Relay there was an issue
-                        socketOut.close();
-                        throw new IllegalStateException("Output file does not exist, or is corrupted");
-                    }
-                    socketOut.writeBoolean(true); // Relay successful transfer
-                    socketOut.flush();
-                    bufferQueue.close();
+            bufferQueue.awaitCompletion();
+            activePaths.removeActiveTransfer(fileName);
+            if (!handshake.checksumMatches()) {
+                handshake.discardOutput();
+                socketOut.writeBoolean(false);
+                socketOut.flush();
+                throw new IllegalStateException("Checksum mismatch, removed: " + outputFile);
+            }
+            File finalFile = new File(outputFile.getParent(), fileName);
+            outputFile.renameTo(finalFile);
 
-                    long seconds = (System.currentTimeMillis() - startTime) / 1000;
-                    String metrics = "Finished receiving file: " + fileName + " to: " + outputFile.getParentFile() +
-                            "\tTime: " + seconds + " Sec" +
-                            "\tSpeed: " + Math.round((double) fileSize / 1048576 / seconds) + " MiBs";
-                    int[] stats = TransferStats.incStats(fileSize);
-                    System.out.println(metrics);
-                    System.out.println("Daily Stats | Count: " + stats[0] +" | Transferred: " + stats[1] + " GiB" );
-                    return;
-                }
-                LockSupport.parkNanos(1_000_000 * 50);
+            if (!finalFile.exists() || finalFile.length() != fileSize) {
+                socketOut.writeBoolean(false); // Relay there was an issue
+                socketOut.close();
+                throw new IllegalStateException("Output file does not exist, or is corrupted");
             }
+            socketOut.writeBoolean(true); // Relay successful transfer
+            socketOut.flush();
+
+            long seconds = (System.currentTimeMillis() - startTime) / 1000;
+            String metrics = "Finished receiving file: " + fileName + " to: " + outputFile.getParentFile() +
+                    "\tTime: " + seconds + " Sec" +
+                    "\tSpeed: " + Math.round((double) handshake.expectedBytes / 1048576 / seconds) + " MiBs" +
+                    handshake.checksumStats();
+            int[] stats = TransferStats.incStats(fileSize, startTime);
+            System.out.println(metrics);
+            System.out.println("Daily Stats | Count: " + stats[0] +" | Transferred: " + stats[1] + " GiB" );
         } catch (Exception e) {
+            TransferStats.FAILED.inc();
             System.out.println(Instant.now().getEpochSecond());
             activePaths.removeActiveTransfer(fileName);
-            bufferQueue.close();
             e.printStackTrace();
             try { socket.close(); } catch (IOException ee) { System.out.println("Error closing socket"); }
         } finally {
+            if (bufferQueue != null) { bufferQueue.shutdown(); }
+            if (handshake != null) { handshake.releaseSlabs(); }
             if (socket != null) {
                 try { socket.close(); } catch (IOException e) { System.out.println("Error closing socket"); }
             }
         }
     }
-}
 
+    private static String diskQueue(DiskStore store) {
+        if (store == null) { return ""; }
+        return " | Disk backlog: " + store.writes.backlog() / 1048576 + " MiB, waiting: " + store.writes.depth() +
+                ", writing: " + store.writes.writing();
+    }
+}
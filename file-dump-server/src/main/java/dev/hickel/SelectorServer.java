@@ -0,0 +1,121 @@
+package dev.hickel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+// Event driven server, a fixed set of io threads each run a selector that does the handshake, framing and reject
+// path for all of their connections. Anything touching the disk (placement, writes, finalization) runs on a
+// fixed writer pool, so the thread count stays at ioThreads + writerThreads regardless of connection count.
+public class SelectorServer {
+    private final ActivePaths activePaths;
+    private final ExecutorService writerPool;
+    private final IoWorker[] workers;
+
+    public SelectorServer(ActivePaths activePaths) throws IOException {
+        this.activePaths = activePaths;
+        writerPool = Executors.newFixedThreadPool(Math.max(1, Settings.writerThreads));
+        workers = new IoWorker[Math.max(1, Settings.ioThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker(Selector.open());
+            Thread thread = new Thread(workers[i], "io-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(writerPool::shutdownNow));
+    }
+
+    public void serve(ServerSocketChannel serverChannel) throws IOException {
+        System.out.println("Selector server started with " + workers.length + " io threads and "
+                + Settings.writerThreads + " writer threads");
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel socketChannel = serverChannel.accept();
+            try {
+                socketChannel.socket().setTrafficClass(24);
+                socketChannel.socket().setKeepAlive(true);
+                if (Settings.socketBufferSize > 0) { socketChannel.socket().setReceiveBufferSize(Settings.socketBufferSize); }
+                socketChannel.configureBlocking(false);
+            } catch (IOException e) {
+                System.out.println("Error configuring accepted socket");
+                socketChannel.close();
+                continue;
+            }
+            IoWorker worker = workers[next];
+            next = (next + 1) % workers.length;
+            NioConnection connection = new NioConnection(socketChannel, worker, activePaths, writerPool);
+            worker.execute(connection::register);
+        }
+    }
+
+
+    public static class IoWorker implements Runnable {
+        private static final long IDLE_TIMEOUT = 120_000;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoWorker(Selector selector) {
+            this.selector = selector;
+        }
+
+        Selector getSelector() {
+            return selector;
+        }
+
+        // Runs the task on this worker's thread, used by writer threads to hand results back to the connection
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            while (selector.isOpen()) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    System.out.println("Selector error");
+                    e.printStackTrace();
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try { task.run(); } catch (Exception e) { e.printStackTrace(); }
+                }
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) { connection.onReadable(); }
+                        if (key.isValid() && key.isWritable()) { connection.onWritable(); }
+                    } catch (Exception e) {
+                        connection.fail(e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck > 1000) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (connection != null && connection.idleFor(now) > IDLE_TIMEOUT) {
+                            connection.fail(new IOException("Read timed out"));
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
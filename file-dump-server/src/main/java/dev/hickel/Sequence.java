@@ -0,0 +1,44 @@
+package dev.hickel;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+
+// A ring position padded on both sides, so the producer's and consumer's sequences never share a cache line and
+// each side only pays for a line the other one writes when it actually needs a newer value. Fields of a superclass
+// are laid out before the subclass's, the padding classes keep the value between two blocks of 56 bytes.
+public class Sequence extends SequenceRhsPadding {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public long get() {
+        return value;
+    }
+
+    // Ordered store, everything written before it is visible to a thread that reads the new value
+    public void set(long newValue) {
+        VALUE.setRelease(this, newValue);
+    }
+}
+
+
+class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+
+class SequenceValue extends SequenceLhsPadding {
+    protected volatile long value;
+}
+
+
+class SequenceRhsPadding extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
@@ -21,9 +21,25 @@ public class Settings {
     public static String bindAddress = "0.0.0.0";
     public static volatile boolean separateThreadForWriting = true;
     public static volatile int queueSize = 8;
+    public static volatile String receiveWaitStrategy = "auto";
+    public static volatile String writeWaitStrategy = "auto";
+    public static volatile String transferMode = "stream";
+    public static boolean nioServer = false;
+    public static int ioThreads = 2;
+    public static int writerThreads = 4;
+    public static boolean virtualThreads = false;
+    public static volatile long memoryBudget = 1073741824;
     public static volatile List<Path> outputDirectories = List.of();
+    public static volatile List<Path> directWriteDirectories = List.of();
+    public static volatile boolean preallocateFiles = true;
     public static volatile boolean oneTransferPerDirectory = false;
+    public static volatile String placementStrategy = "most-free";
+    public static volatile int freeSpaceRefresh = 5;
+    public static int writersPerDisk = 0;
+    public static volatile long diskWriteBatch = 67108864;
     public static volatile int port = 9988;
+    public static int capacityPort = 0;
+    public static int metricsPort = 0;
     public static volatile int socketBufferSize = 32768;
     public static volatile int blockBufferSize = 1048576;
     public static volatile int writeBufferSize = 1048576;
@@ -32,6 +48,7 @@ public class Settings {
     public static volatile List<Path> deletionDirectories = List.of();
     public static volatile long deletionThreshHold = Long.MAX_VALUE;
     public static volatile boolean overWriteExisting = true;
+    public static volatile boolean resumePartialFiles = true;
     private static volatile String lastCheckSum = "";
     private static final TypeReference<List<String>> TYPE_REF = new TypeReference<>() { };
 
@@ -51,10 +68,27 @@ public class Settings {
                 case "bindAddress" -> bindAddress = next.getValue().asText();
                 case "separateThreadForWriting" -> separateThreadForWriting = next.getValue().asBoolean();
                 case "queueSize" -> queueSize = next.getValue().asInt();
+                case "receiveWaitStrategy" -> receiveWaitStrategy = next.getValue().asText();
+                case "writeWaitStrategy" -> writeWaitStrategy = next.getValue().asText();
+                case "transferMode" -> transferMode = next.getValue().asText();
+                case "nioServer" -> nioServer = next.getValue().asBoolean();
+                case "ioThreads" -> ioThreads = next.getValue().asInt();
+                case "writerThreads" -> writerThreads = next.getValue().asInt();
+                case "virtualThreads" -> virtualThreads = next.getValue().asBoolean();
+                case "memoryBudget" -> memoryBudget = (long) next.getValue().asInt() * 1048576;
                 case "outputDirectories" ->
                         outputDirectories = stringsToPaths(mapper.readValue(next.getValue().traverse(), TYPE_REF));
+                case "directWriteDirectories" ->
+                        directWriteDirectories = stringsToPaths(mapper.readValue(next.getValue().traverse(), TYPE_REF));
+                case "preallocateFiles" -> preallocateFiles = next.getValue().asBoolean();
                 case "limitOneTransferPerDirectory" -> oneTransferPerDirectory = next.getValue().asBoolean();
+                case "placementStrategy" -> placementStrategy = next.getValue().asText();
+                case "freeSpaceRefresh" -> freeSpaceRefresh = next.getValue().asInt();
+                case "writersPerDisk" -> writersPerDisk = next.getValue().asInt();
+                case "diskWriteBatch" -> diskWriteBatch = (long) next.getValue().asInt() * 1048576;
                 case "port" -> port = next.getValue().asInt();
+                case "capacityPort" -> capacityPort = next.getValue().asInt();
+                case "metricsPort" -> metricsPort = next.getValue().asInt();
                 case "socketBufferSize" -> socketBufferSize = next.getValue().asInt();
                 case "blockBufferSize" -> blockBufferSize = next.getValue().asInt();
                 case "writeBufferSize" -> writeBufferSize = next.getValue().asInt();
@@ -64,6 +98,7 @@ public class Settings {
                         deletionDirectories = stringsToPaths(mapper.readValue(next.getValue().traverse(), TYPE_REF));
                 case "deletionThreshHold" -> deletionThreshHold = (long) next.getValue().asInt() * 1048576;
                 case "overWriteExisting" -> overWriteExisting = next.getValue().asBoolean();
+                case "resumePartialFiles" -> resumePartialFiles = next.getValue().asBoolean();
                 default -> System.out.println("Unrecognized field name in config");
             }
         }
@@ -90,9 +125,25 @@ public class Settings {
         sb.append("\n  bindAddress: ").append(bindAddress);
         sb.append("\n  separateThreadForWriting: ").append(separateThreadForWriting);
         sb.append("\n  queueSize: ").append(queueSize);
+        sb.append("\n  receiveWaitStrategy: ").append(receiveWaitStrategy);
+        sb.append("\n  writeWaitStrategy: ").append(writeWaitStrategy);
+        sb.append("\n  transferMode: ").append(transferMode);
+        sb.append("\n  nioServer: ").append(nioServer);
+        sb.append("\n  ioThreads: ").append(ioThreads);
+        sb.append("\n  writerThreads: ").append(writerThreads);
+        sb.append("\n  virtualThreads: ").append(virtualThreads);
+        sb.append("\n  memoryBudget: ").append(memoryBudget / 1048576).append(" MiB");
         sb.append("\n  outputDirectories: ").append(outputDirectories);
+        sb.append("\n  directWriteDirectories: ").append(directWriteDirectories);
+        sb.append("\n  preallocateFiles: ").append(preallocateFiles);
         sb.append("\n  limitOneTransferPerDirectory: ").append(oneTransferPerDirectory);
+        sb.append("\n  placementStrategy: ").append(placementStrategy);
+        sb.append("\n  freeSpaceRefresh: ").append(freeSpaceRefresh);
+        sb.append("\n  writersPerDisk: ").append(writersPerDisk);
+        sb.append("\n  diskWriteBatch: ").append(diskWriteBatch / 1048576).append(" MiB");
         sb.append("\n  port: ").append(port);
+        sb.append("\n  capacityPort: ").append(capacityPort);
+        sb.append("\n  metricsPort: ").append(metricsPort);
         sb.append("\n  socketBufferSize: ").append(socketBufferSize);
         sb.append("\n  blockBufferSize: ").append(blockBufferSize);
         sb.append("\n  writeBufferSize: ").append(writeBufferSize);
@@ -101,6 +152,7 @@ public class Settings {
         sb.append("\n  deletionDirectories: ").append(deletionDirectories);
         sb.append("\n  deletionThreshHold: ").append(deletionThreshHold);
         sb.append("\n  overWriteExisting: ").append(overWriteExisting);
+        sb.append("\n  resumePartialFiles: ").append(resumePartialFiles);
         sb.append("\n");
         return sb.toString();
     }
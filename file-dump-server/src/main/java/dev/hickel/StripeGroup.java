@@ -0,0 +1,103 @@
+package dev.hickel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+// One striped transfer, each stripe is its own connection writing its range of the same .tmp file. The stripe
+// to report last renames the file once all stripes succeeded, or deletes it if any failed.
+public class StripeGroup {
+    private final String fileName;
+    private final Path tmpPath;
+    private final long fileSize;
+    private final int count;
+    private final boolean[] joined;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    private int joinedCount = 1; // stripe 0 creates the group
+    private int reported = 0;
+    private boolean failed = false;
+    private boolean finished = false;
+
+    public StripeGroup(String fileName, Path tmpPath, long fileSize, int count) {
+        this.fileName = fileName;
+        this.tmpPath = tmpPath;
+        this.fileSize = fileSize;
+        this.count = count;
+        joined = new boolean[count];
+        joined[0] = true;
+    }
+
+    public Path getTmpPath() {
+        return tmpPath;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    synchronized boolean join(int index) {
+        if (failed || finished || index <= 0 || index >= count || joined[index]) { return false; }
+        joined[index] = true;
+        joinedCount++;
+        return true;
+    }
+
+    // Called once by every joined stripe when it ends, the last one finalizes the file
+    public void report(boolean success, ActivePaths activePaths) {
+        synchronized (this) {
+            reported++;
+            if (!success) { failed = true; }
+            // Once failed, stripes that never joined are not waited on
+            if (finished || (reported < count && !(failed && reported == joinedCount))) { return; }
+            finished = true;
+        }
+        finish(activePaths);
+    }
+
+    // Waits for the other stripes, gives up on stripes that never connect
+    public boolean await(ActivePaths activePaths) throws InterruptedException {
+        while (true) {
+            try {
+                return result.get(120, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                boolean finishNow;
+                synchronized (this) {
+                    if (joinedCount == count) { continue; } // all connected, their own timeouts apply
+                    failed = true;
+                    finishNow = !finished && reported == joinedCount;
+                    if (finishNow) { finished = true; }
+                }
+                if (finishNow) { finish(activePaths); }
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    private void finish(ActivePaths activePaths) {
+        activePaths.endStripes(fileName);
+        boolean success = false;
+        if (!failed) {
+            File outputFile = tmpPath.toFile();
+            File finalFile = new File(outputFile.getParent(), fileName);
+            success = outputFile.length() == fileSize && outputFile.renameTo(finalFile);
+        }
+        if (!success) {
+            System.out.println("Striped transfer failed, removing partial file: " + tmpPath);
+            try { Files.deleteIfExists(tmpPath); } catch (IOException e) {
+                System.out.println("Error deleting partial file: " + tmpPath);
+            }
+        }
+        result.complete(success);
+    }
+}
@@ -7,6 +7,15 @@ import java.time.LocalDate;
 
 
 public class TransferStats {
+    public static final Metrics.Counter WRITTEN_BYTES =
+            Metrics.counter("filedump_written_bytes_total", "Bytes of received files written to disk");
+    public static final Metrics.Counter FILES =
+            Metrics.counter("filedump_files_received_total", "Files received and committed");
+    public static final Metrics.Counter FAILED =
+            Metrics.counter("filedump_transfers_failed_total", "Transfers that ended in an error");
+    public static final Metrics.Histogram TRANSFER_TIME =
+            Metrics.histogram("filedump_transfer_seconds", "Time from connection to commit of received files",
+                              Metrics.DURATION);
     private static final RandomAccessFile randomAccessFile;
     private static String currentDate;
     private static long currentOffset;
@@ -52,7 +61,9 @@ public class TransferStats {
         }
     }
 
-    public static int[] incStats(long dataTransferred) {
+    public static int[] incStats(long dataTransferred, long startMillis) {
+        FILES.inc();
+        TRANSFER_TIME.observe((System.currentTimeMillis() - startMillis) * 1_000_000);
         String today = LocalDate.now().toString();
         int dataSize = (int) bytesToGib(dataTransferred);
         try {
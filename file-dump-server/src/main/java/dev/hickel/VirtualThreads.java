@@ -0,0 +1,45 @@
+package dev.hickel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+// Virtual threads need JDK 21+, the api is looked up reflectively so the build can stay on 17. When not available
+// everything falls back to platform threads.
+public class VirtualThreads {
+    private static final ThreadFactory FACTORY = lookupFactory();
+    private static boolean warned = false;
+
+    public static boolean enabled() {
+        if (Settings.virtualThreads && FACTORY == null && !warned) {
+            warned = true;
+            System.out.println("virtualThreads requires JDK 21 or newer, using platform threads");
+        }
+        return Settings.virtualThreads && FACTORY != null;
+    }
+
+    // Only valid when enabled()
+    public static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread executor not available", e);
+        }
+    }
+
+    public static Thread start(Runnable task) {
+        Thread thread = enabled() ? FACTORY.newThread(task) : new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dev.hickel;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Turns at writing to one disk, shared by every ring writing a file on it. At most writersPerDisk rings write at
+// once, the others queue in arrival order and buffer in their rings meanwhile. A ring keeps its turn for up to
+// diskWriteBatch bytes or until it runs dry, so a spindle writes long sequential runs of one file instead of seeking
+// between all of them on every slab. Bytes received for the disk but not written yet are its backlog.
+public class WriteScheduler {
+    private final Semaphore turns;
+    private final int writers;
+    private final AtomicLong backlog = new AtomicLong();
+
+    public WriteScheduler(int writers) {
+        this.writers = writers;
+        turns = writers > 0 ? new Semaphore(writers, true) : null;
+    }
+
+    public void acquire() throws InterruptedException {
+        if (turns != null) { turns.acquire(); }
+    }
+
+    public void release() {
+        if (turns != null) { turns.release(); }
+    }
+
+    // Only queue behind other rings while someone is waiting for the turn
+    public boolean hasQueued() {
+        return turns != null && turns.hasQueuedThreads();
+    }
+
+    public void queued(long bytes) {
+        backlog.addAndGet(bytes);
+    }
+
+    public void written(long bytes) {
+        backlog.addAndGet(-bytes);
+    }
+
+    public long backlog() {
+        return backlog.get();
+    }
+
+    // Rings waiting for a turn
+    public int depth() {
+        return turns == null ? 0 : turns.getQueueLength();
+    }
+
+    public int writing() {
+        return turns == null ? 0 : writers - turns.availablePermits();
+    }
+}
@@ -0,0 +1,181 @@
+package dev.hickel;
+
+import java.io.*;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+
+// Reads frame payloads from the SocketChannel straight into a direct buffer and writes it with positional
+// FileChannel writes, so data goes from the socket to the page cache without passing through the heap.
+// Since writes are positional this receiver also accepts striped transfers, see StripeGroup.
+public class ZeroCopyFileReceiver implements Runnable {
+    private final SocketChannel socketChannel;
+    private final ActivePaths activePaths;
+    private ByteBuffer buffer;
+    private String fileName = "";
+    private boolean writeFailed = false;
+    private StripeGroup stripeGroup;
+    private int stripeIndex = 0;
+    private Checksum checksum;
+    private DirectWriter direct;
+
+    public ZeroCopyFileReceiver(SocketChannel socketChannel, ActivePaths activePaths) throws SocketException {
+        this.socketChannel = socketChannel;
+        this.activePaths = activePaths;
+        // Channel reads ignore SO_TIMEOUT, keep alive is used to detect dead peers instead
+        socketChannel.socket().setSoTimeout(120_000);
+        socketChannel.socket().setKeepAlive(true);
+        socketChannel.socket().setTrafficClass(24);
+        if (Settings.socketBufferSize > 0) { socketChannel.socket().setReceiveBufferSize(Settings.socketBufferSize); }
+    }
+
+    @Override
+    public void run() {
+        long fileSize = 0;
+        var startTime = System.currentTimeMillis();
+        boolean reported = false;
+        Handshake handshake = null;
+        try (DataInputStream socketIn = new DataInputStream(socketChannel.socket().getInputStream());
+             DataOutputStream socketOut = new DataOutputStream(socketChannel.socket().getOutputStream())) {
+
+            // Check for free space, send boolean to client if space not available, or file exists
+            handshake = new Handshake(socketIn, socketOut);
+            boolean placed = handshake.place(activePaths, true, 1);
+            fileName = handshake.fileName;
+            fileSize = handshake.fileSize;
+            stripeGroup = handshake.stripeGroup;
+            stripeIndex = handshake.stripeIndex;
+            if (!placed) {
+                System.out.println("No space for, file already exists, or all paths in use: " + fileName);
+                return;
+            }
+            buffer = handshake.slabs[0];
+
+            // Inform client to begin
+            File outputFile = handshake.freePath.toFile();
+            System.out.println("Receiving file: " + fileName + " to: " + outputFile.getParentFile()
+                    + (stripeGroup != null ? " | Stripe: " + stripeIndex : ""));
+
+            handshake.negotiate(activePaths, Protocol.FLAG_STRIPE | Protocol.FLAG_RESUME | Protocol.FLAG_CHECKSUM
+                                             | Protocol.FLAG_V2);
+            stripeGroup = handshake.stripeGroup;
+            checksum = handshake.checksum;
+            long filePosition = handshake.startOffset;
+            long expectedBytes = handshake.expectedBytes;
+            boolean rangeComplete;
+            // Stripes land at arbitrary offsets, only whole files can go around the page cache
+            try (FileChannel fileChannel = handshake.openOutput();
+                 DirectWriter directWriter = stripeGroup == null
+                         ? DirectWriter.open(handshake.freePath, handshake.startOffset) : null) {
+                direct = directWriter;
+                long startPosition = filePosition;
+                int bytesReceived;
+                while ((bytesReceived = handshake.nextFrame()) != -1) {
+                    // Frames normally divide the buffer, but handle any size by flushing when it fills
+                    int remaining = bytesReceived;
+                    while (remaining > 0) {
+                        buffer.limit(Math.min(buffer.capacity(), buffer.position() + remaining));
+                        int read = socketChannel.read(buffer);
+                        if (read < 0) { throw new EOFException("Connection closed mid frame"); }
+                        remaining -= read;
+                        if (!buffer.hasRemaining() && buffer.limit() == buffer.capacity()) {
+                            filePosition += writeBuffer(fileChannel, filePosition);
+                        }
+                    }
+                }
+                filePosition += writeBuffer(fileChannel, filePosition);
+                rangeComplete = filePosition - startPosition == expectedBytes && handshake.checksumMatches();
+            } catch (IOException e) {
+                if (!writeFailed) { throw e; }
+                System.out.println("Error writing, assuming directory has improper privileges.");
+                System.out.println("Removed Path: " + activePaths.getExistingPath(fileName));
+                activePaths.removePathOfTransfer(fileName);
+                if (stripeGroup != null) {
+                    reported = true;
+                    stripeGroup.report(false, activePaths);
+                } else {
+                    activePaths.removeActiveTransfer(fileName);
+                }
+                return;
+            }
+
+            if (stripeGroup != null) {
+                // Reply only once the whole file is committed, the client deletes its copy on success
+                reported = true;
+                stripeGroup.report(rangeComplete, activePaths);
+                boolean success = stripeGroup.await(activePaths);
+                socketOut.writeBoolean(success);
+                socketOut.flush();
+                if (!success) { throw new IllegalStateException("Striped transfer failed: " + fileName); }
+                if (stripeIndex > 0) { return; }
+            } else {
+                activePaths.removeActiveTransfer(fileName);
+                if (!rangeComplete) {
+                    handshake.discardOutput();
+                    socketOut.writeBoolean(false);
+                    socketOut.flush();
+                    throw new IllegalStateException("Received data does not match what was sent, removed: " + outputFile);
+                }
+                File finalFile = new File(outputFile.getParent(), fileName);
+                outputFile.renameTo(finalFile);
+
+                if (!finalFile.exists() || finalFile.length() != fileSize) {
+                    socketOut.writeBoolean(false); // Relay there was an issue
+                    socketOut.flush();
+                    throw new IllegalStateException("Output file does not exist, or is corrupted");
+                }
+                socketOut.writeBoolean(true); // Relay successful transfer
+                socketOut.flush();
+            }
+
+            long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+            String metrics = "Finished receiving file: " + fileName + " to: " + outputFile.getParentFile() +
+                    "\tTime: " + seconds + " Sec" +
+                    "\tSpeed: " + Math.round((double) (stripeGroup != null ? fileSize : expectedBytes) / 1048576 / seconds) + " MiBs" +
+                    (stripeGroup != null ? "\tStripes: " + stripeGroup.getCount() : "") +
+                    handshake.checksumStats();
+            int[] stats = TransferStats.incStats(fileSize, startTime);
+            System.out.println(metrics);
+            System.out.println("Daily Stats | Count: " + stats[0] + " | Transferred: " + stats[1] + " GiB");
+        } catch (Exception e) {
+            TransferStats.FAILED.inc();
+            if (handshake != null) { stripeGroup = handshake.stripeGroup; }
+            if (stripeGroup == null) {
+                activePaths.removeActiveTransfer(fileName);
+            } else if (!reported) {
+                stripeGroup.report(false, activePaths);
+            }
+            System.out.println("Error encountered aborting transfer of: " + fileName);
+            e.printStackTrace();
+        } finally {
+            if (handshake != null) { handshake.releaseSlabs(); }
+            try { socketChannel.close(); } catch (IOException e) { System.out.println("Error closing socket"); }
+        }
+    }
+
+    private int writeBuffer(FileChannel fileChannel, long filePosition) throws IOException {
+        buffer.flip();
+        int size = buffer.remaining();
+        if (checksum != null) {
+            checksum.update(buffer);
+            buffer.rewind();
+        }
+        try {
+            if (direct != null) {
+                direct.write(buffer, filePosition);
+            } else {
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, filePosition + (size - buffer.remaining()));
+                }
+            }
+        } catch (IOException e) {
+            writeFailed = true;
+            throw e;
+        }
+        TransferStats.WRITTEN_BYTES.add(size);
+        buffer.clear();
+        return size;
+    }
+}
@@ -0,0 +1,45 @@
+package dev.hickel.stress;
+
+import dev.hickel.CircularBufferQueue;
+import dev.hickel.Settings;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import java.nio.ByteBuffer;
+
+
+// Drives a client ring from both ends the way its reader and QueuedFileSender do, without the disk and the socket.
+// The reader swaps in one slab of each length then an empty one, which ends the stream.
+public class ClientRing {
+
+    // Rings read their wait strategy from Settings when built, built one at a time so each gets the one asked for
+    public static synchronized CircularBufferQueue of(int slabs, int slabSize, String waitStrategy) {
+        Settings.readWaitStrategy = waitStrategy;
+        Settings.sendWaitStrategy = waitStrategy;
+        ByteBuffer[] buffers = new ByteBuffer[slabs];
+        for (int i = 0; i < slabs; i++) { buffers[i] = ByteBuffer.allocate(slabSize); }
+        return new CircularBufferQueue(null, 0, null, buffers);
+    }
+
+    public static void read(CircularBufferQueue ring, int[] lengths) {
+        ByteBuffer buffer = ring.getFirst();
+        for (int i = 0; i < lengths.length; i++) {
+            Slabs.fill(buffer, i, lengths[i]);
+            buffer = ring.swap(buffer);
+        }
+        ring.swap(buffer);
+    }
+
+    // r1 slabs polled before the end, r2 of those intact and in order, r3 how many slabs in the sender saw the end
+    public static void send(CircularBufferQueue ring, int[] lengths, III_Result r) {
+        for (int i = 0; i <= lengths.length; i++) {
+            ByteBuffer slab = ring.poll();
+            if (!slab.hasRemaining()) {
+                r.r3 = i;
+                return;
+            }
+            r.r1++;
+            if (i < lengths.length && Slabs.holds(slab, i, lengths[i])) { r.r2++; }
+            ring.finishedRead();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package dev.hickel.stress;
+
+import dev.hickel.CircularBufferQueue;
+import org.openjdk.jcstress.annotations.*;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+
+@JCStressTest
+@Description("An empty file, the first slab is the end")
+@Outcome(id = "0, 0, 0", expect = ACCEPTABLE, desc = "The end and nothing else")
+@Outcome(expect = FORBIDDEN, desc = "A slab out of nowhere, or no end")
+@State
+public class ClientRingEmptyTest {
+    private static final int[] LENGTHS = {};
+    private final CircularBufferQueue ring = ClientRing.of(2, 16, "park");
+
+    @Actor
+    public void reader() {
+        ClientRing.read(ring, LENGTHS);
+    }
+
+    @Actor
+    public void sender(III_Result r) {
+        ClientRing.send(ring, LENGTHS, r);
+    }
+}
@@ -0,0 +1,29 @@
+package dev.hickel.stress;
+
+import dev.hickel.CircularBufferQueue;
+import org.openjdk.jcstress.annotations.*;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+
+@JCStressTest
+@Description("A file smaller than one slab")
+@Outcome(id = "1, 1, 1", expect = ACCEPTABLE, desc = "Every slab once, whole and in order, then the end")
+@Outcome(expect = FORBIDDEN, desc = "A slab lost, duplicated, torn or reordered, or the end seen on the wrong slab")
+@State
+public class ClientRingTinyTest {
+    private static final int[] LENGTHS = {1};
+    private final CircularBufferQueue ring = ClientRing.of(2, 16, "spin");
+
+    @Actor
+    public void reader() {
+        ClientRing.read(ring, LENGTHS);
+    }
+
+    @Actor
+    public void sender(III_Result r) {
+        ClientRing.send(ring, LENGTHS, r);
+    }
+}
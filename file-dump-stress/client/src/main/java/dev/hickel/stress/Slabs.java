@@ -0,0 +1,22 @@
+package dev.hickel.stress;
+
+import java.nio.ByteBuffer;
+
+
+// Every byte of slab i holds i + 1, so a slab that comes out lost, twice, out of order or partly overwritten by a
+// later lap doesn't match what was put in
+public class Slabs {
+
+    public static void fill(ByteBuffer slab, int index, int length) {
+        for (int i = 0; i < length; i++) { slab.put((byte) (index + 1)); }
+    }
+
+    // The slab as the consumer gets it, flipped
+    public static boolean holds(ByteBuffer slab, int index, int length) {
+        if (slab.position() != 0 || slab.limit() != length) { return false; }
+        for (int i = 0; i < length; i++) {
+            if (slab.get(i) != (byte) (index + 1)) { return false; }
+        }
+        return true;
+    }
+}
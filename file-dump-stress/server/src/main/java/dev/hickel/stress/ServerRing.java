@@ -0,0 +1,47 @@
+package dev.hickel.stress;
+
+import dev.hickel.CircularBufferQueue;
+import dev.hickel.Handshake;
+import dev.hickel.Settings;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+import java.nio.ByteBuffer;
+
+
+// Drives a server ring from both ends the way QueuedFileReceiver and the ring's writer do, without the socket and
+// the disk. The receiver swaps in one slab of each length, the last one flagged as the end of the transfer.
+public class ServerRing {
+
+    // Rings read their wait strategy from Settings when built, built one at a time so each gets the one asked for
+    public static synchronized CircularBufferQueue of(int slabs, int slabSize, String waitStrategy) {
+        Settings.receiveWaitStrategy = waitStrategy;
+        Settings.writeWaitStrategy = waitStrategy;
+        Handshake handshake = new Handshake(null, null);
+        handshake.slabs = new ByteBuffer[slabs];
+        for (int i = 0; i < slabs; i++) { handshake.slabs[i] = ByteBuffer.allocate(slabSize); }
+        return new CircularBufferQueue(handshake);
+    }
+
+    public static void receive(CircularBufferQueue ring, int[] lengths) {
+        ByteBuffer buffer = ring.getFirst();
+        for (int i = 0; i < lengths.length; i++) {
+            Slabs.fill(buffer, i, lengths[i]);
+            buffer = ring.swap(buffer, i == lengths.length - 1);
+        }
+    }
+
+    // r1 slabs polled, r2 of those intact and in order, r3 how many slabs in the writer saw the last one
+    public static void write(CircularBufferQueue ring, int[] lengths, III_Result r) {
+        for (int i = 0; i < lengths.length; i++) {
+            ByteBuffer slab = ring.poll();
+            r.r1++;
+            if (Slabs.holds(slab, i, lengths[i])) { r.r2++; }
+            boolean last = ring.polledLast();
+            ring.wrote();
+            if (last) {
+                r.r3 = i + 1;
+                return;
+            }
+        }
+    }
+}